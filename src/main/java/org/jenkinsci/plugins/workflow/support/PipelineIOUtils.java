@@ -4,13 +4,24 @@ import hudson.XmlFile;
 import hudson.util.XStream2;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * Utilities to assist with IO and in some cases improve performance specifically for pipeline.
@@ -37,4 +48,149 @@ public class PipelineIOUtils {
             }
         }
     }
+
+    /**
+     * Like {@link #writeByXStream(Object, File, XStream2, boolean)}, optionally gzip-compressing the XML.
+     * Files written either way can be read back with {@link #readByXStream}.
+     * @param compress If true, write gzip-compressed XML.
+     * @throws IOException
+     */
+    @Restricted(NoExternalUse.class)
+    public static void writeByXStream(@NonNull Object toWrite, @NonNull File location, @NonNull XStream2 xstream, boolean atomicWrite, boolean compress) throws IOException {
+        if (!compress) {
+            writeByXStream(toWrite, location, xstream, atomicWrite);
+            return;
+        }
+        try {
+            Path target = location.toPath();
+            Path written = atomicWrite ? Files.createTempFile(target.toAbsolutePath().getParent(), "atomic", "tmp") : target;
+            try {
+                try (FileChannel ch = FileChannel.open(written, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    // Do not close the stream, since that would close the channel before we can force it.
+                    GZIPOutputStream os = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)), 8192);
+                    xstream.toXMLUTF8(toWrite, os);
+                    os.finish();
+                    os.flush();
+                    if (atomicWrite) {
+                        ch.force(true);
+                    }
+                }
+                if (atomicWrite) {
+                    Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                if (atomicWrite) {
+                    Files.deleteIfExists(written);
+                }
+            }
+        } catch (InvalidPathException ipe) {
+            throw new IOException(ipe);
+        }
+    }
+
+    /**
+     * Reads an object from an XML file, which may have been gzip-compressed by {@link #writeByXStream(Object, File, XStream2, boolean, boolean)}.
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     * @throws IOException if the file could not be read or parsed
+     */
+    @Restricted(NoExternalUse.class)
+    public static Object readByXStream(@NonNull File location, @NonNull XStream2 xstream) throws IOException {
+        try (InputStream in = openMaybeCompressed(location)) {
+            return xstream.fromXML(in);
+        } catch (RuntimeException | Error e) {
+            throw new IOException("Unable to read " + location, e);
+        }
+    }
+
+    /**
+     * Opens a file for reading, transparently decompressing it if it starts with the gzip magic number.
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     */
+    @Restricted(NoExternalUse.class)
+    public static InputStream openMaybeCompressed(@NonNull File location) throws IOException {
+        InputStream in;
+        try {
+            in = new BufferedInputStream(Files.newInputStream(location.toPath()));
+        } catch (InvalidPathException ipe) {
+            throw new IOException(ipe);
+        }
+        try {
+            return isCompressed(in) ? new BufferedInputStream(new GZIPInputStream(in)) : in;
+        } catch (IOException | RuntimeException x) {
+            in.close();
+            throw x;
+        }
+    }
+
+    /** Peeks at the start of a stream supporting {@link InputStream#mark} to check for the gzip magic number. */
+    private static boolean isCompressed(InputStream in) throws IOException {
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        return b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+
+    /**
+     * Rewrites a file written by {@link #writeByXStream(Object, File, XStream2, boolean, boolean)} with or without compression,
+     * without deserializing it. Does nothing if the file is already in the requested form.
+     * @return true if the file was rewritten
+     */
+    @Restricted(NoExternalUse.class)
+    public static boolean recompress(@NonNull File location, boolean compress) throws IOException {
+        boolean compressed;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(location.toPath()))) {
+            compressed = isCompressed(in);
+        }
+        if (compressed == compress) {
+            return false;
+        }
+        Path target = location.toPath();
+        Path written = Files.createTempFile(target.toAbsolutePath().getParent(), "atomic", "tmp");
+        try {
+            try (InputStream in = openMaybeCompressed(location);
+                 OutputStream out = compress ? new GZIPOutputStream(Files.newOutputStream(written), 8192) : new BufferedOutputStream(Files.newOutputStream(written))) {
+                in.transferTo(out);
+            }
+            Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(written);
+        }
+        return true;
+    }
+
+    /**
+     * Writes already serialized data directly or atomically, with the same guarantees as {@link #writeByXStream}.
+     * @param data Bytes to write
+     * @param location File to write to
+     * @param atomicWrite If true, write to a temporary file which is forced to disk and then moved into place, otherwise write directly.
+     * @throws IOException
+     */
+    @Restricted(NoExternalUse.class)
+    public static void writeBytes(@NonNull byte[] data, @NonNull File location, boolean atomicWrite) throws IOException {
+        try {
+            Path target = location.toPath();
+            Path written = atomicWrite ? Files.createTempFile(target.toAbsolutePath().getParent(), "atomic", "tmp") : target;
+            try {
+                try (FileChannel ch = FileChannel.open(written, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buf = ByteBuffer.wrap(data);
+                    while (buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    if (atomicWrite) {
+                        ch.force(true);
+                    }
+                }
+                if (atomicWrite) {
+                    Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                if (atomicWrite) {
+                    Files.deleteIfExists(written);
+                }
+            }
+        } catch (InvalidPathException ipe) {
+            throw new IOException(ipe);
+        }
+    }
 }
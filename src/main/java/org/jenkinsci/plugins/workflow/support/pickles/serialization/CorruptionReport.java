@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.workflow.support.pickles.serialization;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.remoting.HexDump;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes a failure of {@link RiverReader} to read a program data file, for diagnosis by people or tools.
+ *
+ * <p>Rather than the whole file, which may be many megabytes, only a window of at most {@link #WINDOW_SIZE} bytes
+ * around the point where reading failed is kept, and written as a hex dump to a {@linkplain #getDumpFile() side file}
+ * next to the original. The failure point is approximate, since the file is read ahead of what has been parsed,
+ * and for compressed files refers to the compressed bytes.
+ *
+ * @see RiverReader#getCorruptionReport
+ */
+public final class CorruptionReport {
+
+    private static final Logger LOGGER = Logger.getLogger(CorruptionReport.class.getName());
+
+    /** Maximum number of bytes kept around the failure point. */
+    public static final int WINDOW_SIZE = 16 * 1024;
+
+    private final File file;
+    private final long fileLength;
+    private final long streamOffset;
+    private final long failureOffset;
+    private final long windowOffset;
+    private final byte[] window;
+    private final @CheckForNull File dumpFile;
+    private final String failure;
+
+    private CorruptionReport(File file, long fileLength, long streamOffset, long failureOffset, long windowOffset, byte[] window, @CheckForNull File dumpFile, String failure) {
+        this.file = file;
+        this.fileLength = fileLength;
+        this.streamOffset = streamOffset;
+        this.failureOffset = failureOffset;
+        this.windowOffset = windowOffset;
+        this.window = window;
+        this.dumpFile = dumpFile;
+        this.failure = failure;
+    }
+
+    /**
+     * Copies the window around the failure point out of the file, and writes it to the side file.
+     * @param channel open on {@code file}
+     * @param streamOffset where the stream which failed to read starts
+     * @param failureOffset how far the file had been read when the failure happened
+     */
+    static @NonNull CorruptionReport create(@NonNull File file, @NonNull FileChannel channel, long streamOffset, long failureOffset, @NonNull Throwable failure) {
+        long fileLength = -1;
+        long windowOffset = Math.max(0, failureOffset - WINDOW_SIZE / 2);
+        byte[] window = new byte[0];
+        try {
+            fileLength = channel.size();
+            windowOffset = Math.min(windowOffset, Math.max(0, fileLength - WINDOW_SIZE));
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(WINDOW_SIZE, fileLength - windowOffset));
+            while (buf.hasRemaining() && channel.read(buf, windowOffset + buf.position()) != -1) {
+                // keep reading
+            }
+            window = new byte[buf.position()];
+            System.arraycopy(buf.array(), 0, window, 0, window.length);
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not read " + file + " around the failure", x);
+        }
+        File dumpFile = new File(file.getPath() + ".corrupt");
+        String description = String.valueOf(failure);
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(dumpFile.toPath(), StandardCharsets.UTF_8))) {
+            w.println("Failed to read " + file + ": " + description);
+            w.println("Stream starting at " + streamOffset + " failed at or before " + failureOffset + " of " + fileLength + " bytes");
+            w.println(window.length + " bytes from " + windowOffset + ":");
+            w.println(HexDump.toHex(window));
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not write " + dumpFile, x);
+            dumpFile = null;
+        }
+        return new CorruptionReport(file, fileLength, streamOffset, failureOffset, windowOffset, window, dumpFile, description);
+    }
+
+    /** The program data file which could not be read. */
+    public @NonNull File getFile() {
+        return file;
+    }
+
+    /** Size of the file when it failed to read, or -1 if that could not be determined. */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /** Where in the file the stream which failed to read starts. */
+    public long getStreamOffset() {
+        return streamOffset;
+    }
+
+    /** How far the file had been read when the failure happened; the actual problem may be up to a buffer's length before. */
+    public long getFailureOffset() {
+        return failureOffset;
+    }
+
+    /** Where in the file {@link #getWindow} starts. */
+    public long getWindowOffset() {
+        return windowOffset;
+    }
+
+    /** Bytes of the file around the failure point; at most {@link #WINDOW_SIZE}. */
+    public @NonNull byte[] getWindow() {
+        return window.clone();
+    }
+
+    /** File holding a hex dump of {@link #getWindow}, or null if it could not be written. */
+    public @CheckForNull File getDumpFile() {
+        return dumpFile;
+    }
+
+    /** The error which stopped reading. */
+    public @NonNull String getFailure() {
+        return failure;
+    }
+
+    @Override public String toString() {
+        return "stream @" + streamOffset + " of " + file + " failed near " + failureOffset + " of " + fileLength + " bytes"
+                + (dumpFile != null ? "; " + window.length + " bytes around it dumped to " + dumpFile : "");
+    }
+}
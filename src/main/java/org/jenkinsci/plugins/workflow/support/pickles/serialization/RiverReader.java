@@ -27,8 +27,6 @@ package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 import com.google.common.base.Function;
 import com.google.common.util.concurrent.ListenableFuture;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import hudson.remoting.HexDump;
-import org.apache.commons.io.IOUtils;
 import org.jboss.marshalling.ChainingObjectResolver;
 import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
@@ -44,17 +42,19 @@ import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.InflaterInputStream;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
-import org.apache.commons.io.FileUtils;
 
 import org.jboss.marshalling.ByteInput;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
@@ -108,6 +108,14 @@ public class RiverReader implements Closeable {
 
     private InputStream in;
 
+    /** Opened by {@link #restorePickles}; both streams are read from it with positional reads. */
+    private FileChannel channel;
+
+    private @CheckForNull CorruptionReport corruptionReport;
+
+    /** Whether the streams are deflated; set by {@link #parseHeader}. */
+    private boolean compressed;
+
     public RiverReader(File f, ClassLoader classLoader, FlowExecutionOwner owner) throws IOException {
         this.file = f;
         this.classLoader = classLoader;
@@ -120,13 +128,27 @@ public class RiverReader implements Closeable {
         }
 
         short v = din.readShort();
-        if (v != RiverWriter.VERSION) {
+        if (v != RiverWriter.VERSION && v != RiverWriter.COMPRESSED_VERSION) {
             throw new IOException("Unexpected stream version: "+v);
         }
+        compressed = v == RiverWriter.COMPRESSED_VERSION;
 
         return din.readInt();
     }
 
+    /** Undoes the compression of one of the two streams, if the file uses {@link RiverWriter#COMPRESSED_VERSION}. */
+    private InputStream maybeInflate(InputStream stream) {
+        return compressed ? new InflaterInputStream(stream) : stream;
+    }
+
+    /**
+     * Describes why {@link #restorePickles} failed to read the file, if it did, without holding on to the whole file.
+     * @return null unless the file was found to be unreadable
+     */
+    public @CheckForNull CorruptionReport getCorruptionReport() {
+        return corruptionReport;
+    }
+
     @Deprecated
     public ListenableFuture<Unmarshaller> restorePickles() throws IOException {
         return restorePickles(new ArrayList<>());
@@ -140,6 +162,7 @@ public class RiverReader implements Closeable {
      * that can be then used to load the objects persisted by {@link RiverWriter}.
      */
     public ListenableFuture<Unmarshaller> restorePickles(Collection<ListenableFuture<?>> pickleFutures) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         in = openStreamAt(0);
         try {
         DataInputStream din = new DataInputStream(in);
@@ -155,7 +178,8 @@ public class RiverReader implements Closeable {
         //config.setSerializabilityChecker(new SerializabilityCheckerImpl());
         config.setObjectResolver(combine(evr, ownerResolver));
         Unmarshaller eu = new RiverMarshallerFactory().createUnmarshaller(config);
-        eu.start(Marshalling.createByteInput(din));
+        in = maybeInflate(din);
+        eu.start(Marshalling.createByteInput(in));
 
         final Unmarshaller sandboxed = new SandboxedUnmarshaller(eu);
 
@@ -167,7 +191,7 @@ public class RiverReader implements Closeable {
             }
         });
         } catch (IOException x) {
-            in.close();
+            close();
             throw x;
         }
     }
@@ -177,7 +201,8 @@ public class RiverReader implements Closeable {
         if (offset == 0) {
             throw new IOException("No offset for pickles");
         }
-        try (BufferedInputStream es = openStreamAt(offset)) {
+        ChannelInputStream raw = new ChannelInputStream(channel, offset);
+        try (InputStream es = maybeInflate(new BufferedInputStream(raw))) {
             MarshallingConfiguration config = new MarshallingConfiguration();
             config.setClassResolver(new SimpleClassResolver(classLoader));
             config.setObjectResolver(combine(ownerResolver));
@@ -188,7 +213,8 @@ public class RiverReader implements Closeable {
             } catch (ClassNotFoundException e) {
                 throw new IOException("Failed to read the stream",e);
             } catch (IOException x) {
-                LOGGER.log(Level.WARNING, "Failed to read " + file + "@" + offset + "\n" + HexDump.toHex(FileUtils.readFileToByteArray(file)), x);
+                corruptionReport = CorruptionReport.create(file, channel, offset, raw.position, x);
+                LOGGER.log(Level.WARNING, "Failed to read " + corruptionReport, x);
                 throw x;
             } finally {
                 eu.finish();
@@ -196,10 +222,9 @@ public class RiverReader implements Closeable {
         }
     }
 
-    private BufferedInputStream openStreamAt(int offset) throws IOException {
-        InputStream in = new FileInputStream(file);
-        IOUtils.skipFully(in, offset);
-        return new BufferedInputStream(in);
+    /** Reads {@link #channel} from the given offset, without moving the position of the channel or closing it. */
+    private BufferedInputStream openStreamAt(long offset) {
+        return new BufferedInputStream(new ChannelInputStream(channel, offset));
     }
 
     private ObjectResolver combine(ObjectResolver... resolvers) {
@@ -219,6 +244,55 @@ public class RiverReader implements Closeable {
                 LOGGER.log(Level.WARNING, "could not close stream on " + file, x);
             }
         }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "could not close " + file, x);
+            }
+        }
+    }
+
+    /** Reads a {@link FileChannel} starting from some position, so that several streams can share one open file. */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, channel.size() - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, channel.size() - position));
+        }
+
+        @Override public void close() {
+            // The channel is closed by RiverReader.close.
+        }
     }
 
     /** Applies {@link GroovySandbox} to a delegate unmarshaller. */
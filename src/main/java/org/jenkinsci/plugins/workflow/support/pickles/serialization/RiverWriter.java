@@ -27,7 +27,10 @@ package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import org.jenkinsci.plugins.workflow.pickles.PickleFactory;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
 import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
 import org.jboss.marshalling.ObjectResolver;
 import org.jboss.marshalling.river.RiverMarshallerFactory;
@@ -37,6 +40,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -44,15 +48,25 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import org.jboss.marshalling.ByteOutput;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * {@link ObjectOutputStream} compatible object graph serializer
  * that handles stateful objects for proper rehydration later.
  *
+ * <p>The file starts with a header ({@link #HEADER}, the format version, and the offset of the ephemerals stream),
+ * followed by the main stream and then the ephemerals stream. In {@link #COMPRESSED_VERSION} each of the two streams
+ * is deflated on its own, so that either can still be read starting from its offset.
+ *
  * @author Kohsuke Kawaguchi
  * @see RiverMarshallerFactory
  * @see RiverReader
@@ -61,6 +75,14 @@ public class RiverWriter implements Closeable {
 
     private static final Logger LOGGER = Logger.getLogger(RiverWriter.class.getName());
 
+    /**
+     * Whether to write files in {@link #COMPRESSED_VERSION}.
+     * Off by default, since versions of this plugin before it was introduced cannot read such files back.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean COMPRESS = SystemProperties.getBoolean(RiverWriter.class.getName() + ".COMPRESS", false);
+
     /**
      * File that we are writing to.
      */
@@ -77,6 +99,21 @@ public class RiverWriter implements Closeable {
      */
     private final FileChannel channel;
 
+    /**
+     * Buffers writes to {@link #channel}; used for both the main body and the ephemerals stream.
+     */
+    private final FileChannelOutput output;
+
+    /**
+     * Whether the streams are deflated, as in {@link #COMPRESSED_VERSION}.
+     */
+    private final boolean compress = COMPRESS;
+
+    /**
+     * Deflates the stream being written, if {@link #compress}.
+     */
+    private DeflatingOutputStream deflating;
+
     /**
      * Handles object graph -> byte[] conversion
      */
@@ -106,7 +143,8 @@ public class RiverWriter implements Closeable {
         file = f;
         owner = _owner;
         channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
-        channel.write(HEADER_BUFFER.duplicate());
+        channel.write((compress ? COMPRESSED_HEADER_BUFFER : HEADER_BUFFER).duplicate());
+        output = new FileChannelOutput(channel);
         LOGGER.fine(() -> "Starting to save " + file);
 
         MarshallingConfiguration config = new MarshallingConfiguration();
@@ -137,7 +175,7 @@ public class RiverWriter implements Closeable {
         });
 
         marshaller = new RiverMarshallerFactory().createMarshaller(config);
-        marshaller.start(new FileChannelOutput(channel));
+        marshaller.start(startStream());
         pickling = true;
     }
 
@@ -170,13 +208,15 @@ public class RiverWriter implements Closeable {
         int ephemeralsOffset;
         try {
             marshaller.finish();
+            finishStream(); // so that the position of the channel includes everything written so far
             ephemeralsOffset = (int)channel.position();
 
             // write the ephemerals stream
             pickling = false;
-            marshaller.start(new FileChannelOutput(channel));
+            marshaller.start(startStream());
             marshaller.writeObject(pickles);
             marshaller.finish();
+            finishStream();
 
             // back fill the offset to the ephemerals stream
             channel.position(EPHEMERALS_BACKPTR);
@@ -185,56 +225,146 @@ public class RiverWriter implements Closeable {
             channel.write(ephemeralsPtrBuffer);
             channel.force(true);
         } finally {
+            if (deflating != null) {
+                deflating.end();
+            }
+            output.release();
             channel.close();
         }
         LOGGER.fine(() -> "Closed " + file + "; pickle offset @" + ephemeralsOffset);
     }
 
-    private static class FileChannelOutput implements ByteOutput {
+    /** Begins one of the two streams, deflating it if {@link #compress}. */
+    private ByteOutput startStream() {
+        if (!compress) {
+            return output;
+        }
+        deflating = new DeflatingOutputStream(output);
+        return Marshalling.createByteOutput(deflating);
+    }
+
+    /** Ends the stream begun by {@link #startStream}, and writes out everything buffered. */
+    private void finishStream() throws IOException {
+        if (deflating != null) {
+            deflating.finish();
+            deflating.end();
+            deflating = null;
+        }
+        output.flush();
+    }
+
+    /** Gives access to its {@link Deflater}, so that the native memory can be released without closing the channel. */
+    private static final class DeflatingOutputStream extends DeflaterOutputStream {
+        DeflatingOutputStream(OutputStream out) {
+            super(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * Collects the many small writes made by the marshaller in a direct buffer, writing to the channel only when it is full,
+     *  so that they cost neither a system call nor an allocation each.
+     * {@link #flush} must be called before relying on the position of the channel.
+     */
+    private static class FileChannelOutput extends OutputStream implements ByteOutput {
+        /**
+         * Direct buffers are costly to allocate, so a few are kept for later writers.
+         * Bounded, so that no more direct memory stays allocated than a handful of concurrent saves need, whatever thread they ran on.
+         */
+        private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
         private final FileChannel channel;
-        /** Used to reduce allocation for single-byte writes. */
-        private final byte[] singleton = new byte[1];
+        private ByteBuffer buffer;
 
         private FileChannelOutput(FileChannel channel) {
             this.channel = channel;
+            ByteBuffer b = BUFFERS.poll();
+            if (b != null) {
+                ((Buffer)b).clear();
+            } else {
+                b = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            buffer = b;
+        }
+
+        /** Hands the buffer back for reuse by a later writer, unless enough are kept already. Must be the last call. */
+        void release() {
+            if (buffer != null) {
+                BUFFERS.offer(buffer);
+            }
+            buffer = null;
         }
 
         @Override
         public void write(int b) throws IOException {
-            singleton[0] = (byte)b; // Downcasting as per interface Javadoc.
-            channel.write(ByteBuffer.wrap(singleton));
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte)b); // Downcasting as per interface Javadoc.
         }
 
         @Override
         public void write(byte[] bytes) throws IOException {
-            channel.write(ByteBuffer.wrap(bytes));
+            write(bytes, 0, bytes.length);
         }
 
         @Override
         public void write(byte[] bytes, int off, int len) throws IOException {
-            channel.write(ByteBuffer.wrap(bytes, off, len));
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(bytes, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void drain() throws IOException {
+            ((Buffer)buffer).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            ((Buffer)buffer).clear();
         }
 
         @Override
         public void close() throws IOException {
             // We only close the channel once all writes are complete.
+            drain();
         }
 
+        /** Writes out what is buffered. We invoke {@link FileChannel#force} manually before closing the channel. */
         @Override
         public void flush() throws IOException {
-            // We invoke FileChannel.force manually before closing the channel.
+            drain();
         }
     }
 
     /*constant*/ static final long HEADER = 7330745437582215633L;
     /*constant*/ static final short VERSION = 1;
+    /** Like {@link #VERSION}, but with each stream deflated; see {@link #COMPRESS}. */
+    /*constant*/ static final short COMPRESSED_VERSION = 2;
     private static final int EPHEMERALS_BACKPTR = 10; // sizeof(long) + sizeof(short)
+    /** Size of the {@link FileChannelOutput} buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Number of {@link FileChannelOutput} buffers kept for reuse. */
+    private static final int POOLED_BUFFERS = 4;
     /** Used to reduce allocation. Always call {@link ByteBuffer#duplicate} rather than using this directly. */
     // Downcasting to Buffer is needed to avoid NoSuchMethodError when running on Java 9+ due to ByteBuffer method return type changes.
-    private static final ByteBuffer HEADER_BUFFER = (ByteBuffer)((Buffer)ByteBuffer.allocate(14)
+    private static final ByteBuffer HEADER_BUFFER = header(VERSION);
+    private static final ByteBuffer COMPRESSED_HEADER_BUFFER = header(COMPRESSED_VERSION);
+
+    private static ByteBuffer header(short version) {
+        return (ByteBuffer)((Buffer)ByteBuffer.allocate(14)
             .putLong(HEADER)
-            .putShort(VERSION)
+            .putShort(version)
             .putInt(0) // Space for EPHEMERALS_BACKPTR
             .asReadOnlyBuffer())
-            .flip(); 
+            .flip();
+    }
 }
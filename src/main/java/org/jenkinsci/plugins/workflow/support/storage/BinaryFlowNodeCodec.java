@@ -0,0 +1,517 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.reflection.ReflectionConverter;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Action;
+import hudson.model.labels.LabelAtom;
+import hudson.util.RobustReflectionConverter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Encodes nodes and actions field by field in a compact binary layout, avoiding XStream for the common cases.
+ *
+ * <p>A node or action can be encoded this way when its persistent (non-static, non-transient) fields are all of simple types:
+ *  primitives and their wrappers, {@link String}, {@code List<String>}, or {@code Set<LabelAtom>} (as used by
+ *  {@link org.jenkinsci.plugins.workflow.support.actions.WorkspaceActionImpl}), and it has no custom XStream conversion
+ *  ({@code readResolve}, a registered converter, and so on).
+ *  This covers the step nodes from {@code workflow-cps} and actions such as
+ *  {@link org.jenkinsci.plugins.workflow.actions.TimingAction}, {@link org.jenkinsci.plugins.workflow.actions.LabelAction},
+ *  {@link org.jenkinsci.plugins.workflow.support.actions.LogStorageAction} and {@link org.jenkinsci.plugins.workflow.support.actions.PauseAction}.
+ *  Anything else, such as {@link org.jenkinsci.plugins.workflow.actions.ArgumentsAction} implementations which hold arbitrary
+ *  step arguments, falls back to XStream: a whole node via {@link XStreamFlowNodeCodec}, or a single action as an XML fragment.
+ *
+ * <p>Each field is written with its name and a type tag, so fields which were added, removed or retyped since the record was
+ *  written are simply left at their defaults, much as {@link RobustReflectionConverter} would do.
+ */
+final class BinaryFlowNodeCodec implements FlowNodeCodec {
+    private static final Logger LOGGER = Logger.getLogger(BinaryFlowNodeCodec.class.getName());
+
+    static final byte ID = 1;
+
+    static final BinaryFlowNodeCodec INSTANCE = new BinaryFlowNodeCodec();
+
+    private BinaryFlowNodeCodec() {}
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void write(@NonNull FlowNode node, @NonNull List<Action> actions, @NonNull DataOutputStream out) throws IOException {
+        Layout nodeLayout = LAYOUTS.get(node.getClass());
+        if (!nodeLayout.encodable) {
+            out.writeByte(FORMAT_XSTREAM);
+            XStreamFlowNodeCodec.INSTANCE.write(node, actions, out);
+            return;
+        }
+        out.writeByte(FORMAT_FIELDS);
+        writeType(node.getClass(), out);
+        writeString(node.getId(), out);
+        writeStrings(node.getParentIds(), out);
+        writeFields(node, nodeLayout, out);
+        out.writeInt(actions.size());
+        for (Action a : actions) {
+            Layout layout = LAYOUTS.get(a.getClass());
+            if (layout.encodable) {
+                out.writeByte(FORMAT_FIELDS);
+                writeType(a.getClass(), out);
+                writeFields(a, layout, out);
+            } else {
+                out.writeByte(FORMAT_XSTREAM);
+                writeString(SimpleXStreamFlowNodeStorage.XSTREAM.toXML(a), out);
+            }
+        }
+    }
+
+    @Override
+    public @NonNull Decoded read(@NonNull DataInputStream in) throws IOException {
+        byte format = in.readByte();
+        if (format == FORMAT_XSTREAM) {
+            return XStreamFlowNodeCodec.INSTANCE.read(in);
+        } else if (format != FORMAT_FIELDS) {
+            throw new IOException("Unknown node format " + format);
+        }
+        String typeName = readType(in);
+        Class<?> type;
+        try {
+            type = SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().realClass(typeName);
+        } catch (CannotResolveClassException x) {
+            throw new IOException("failed to load flow node class " + typeName, x);
+        }
+        if (!FlowNode.class.isAssignableFrom(type)) {
+            throw new IOException(typeName + " is not a flow node");
+        }
+        FlowNode node = (FlowNode) newInstance(type);
+        try {
+            FlowNode$id.set(node, readString(in));
+            FlowNode$parentIds.set(node, readStrings(in));
+        } catch (IllegalAccessException x) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to set node ID").initCause(x);
+        }
+        readFields(node, LAYOUTS.get(type), in);
+        int count = in.readInt();
+        List<Action> actions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Action a = readAction(in);
+            if (a != null) {
+                actions.add(a);
+            }
+        }
+        return new Decoded(node, actions);
+    }
+
+    /** Reads one action, or returns null (having consumed its bytes) if it can no longer be loaded. */
+    private static @CheckForNull Action readAction(DataInputStream in) throws IOException {
+        byte format = in.readByte();
+        if (format == FORMAT_XSTREAM) {
+            String xml = readString(in);
+            try {
+                return (Action) SimpleXStreamFlowNodeStorage.XSTREAM.fromXML(xml);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, "Skipping action which could not be loaded", x);
+                return null;
+            }
+        } else if (format != FORMAT_FIELDS) {
+            throw new IOException("Unknown action format " + format);
+        }
+        String typeName = readType(in);
+        Class<?> type;
+        try {
+            type = SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().realClass(typeName);
+        } catch (CannotResolveClassException x) {
+            LOGGER.log(Level.WARNING, "Skipping action of unknown type {0}", typeName);
+            readFields(null, null, in);
+            return null;
+        }
+        if (!Action.class.isAssignableFrom(type)) {
+            throw new IOException(typeName + " is not an action");
+        }
+        Action a = (Action) newInstance(type);
+        readFields(a, LAYOUTS.get(type), in);
+        return a;
+    }
+
+    private static Object newInstance(Class<?> type) throws IOException {
+        try {
+            return SimpleXStreamFlowNodeStorage.XSTREAM.getReflectionProvider().newInstance(type);
+        } catch (RuntimeException x) {
+            throw new IOException("failed to instantiate " + type.getName(), x);
+        }
+    }
+
+    private static void writeType(Class<?> type, DataOutputStream out) throws IOException {
+        int known = KNOWN_TYPES.indexOf(type.getName());
+        out.writeByte(known);
+        if (known == -1) {
+            out.writeUTF(type.getName());
+        }
+    }
+
+    private static String readType(DataInputStream in) throws IOException {
+        byte known = in.readByte();
+        if (known == -1) {
+            return in.readUTF();
+        } else if (known < 0 || known >= KNOWN_TYPES.size()) {
+            throw new IOException("Unknown type index " + known);
+        }
+        return KNOWN_TYPES.get(known);
+    }
+
+    private static void writeFields(Object o, Layout layout, DataOutputStream out) throws IOException {
+        out.writeShort(layout.fields.size());
+        for (Field f : layout.fields) {
+            Object v;
+            try {
+                v = f.get(o);
+            } catch (IllegalAccessException x) {
+                throw new IOException("failed to read " + f, x);
+            }
+            out.writeUTF(f.getName());
+            writeValue(v, out);
+        }
+    }
+
+    /**
+     * Reads fields previously written by {@link #writeFields} into an object.
+     * If {@code o} is null the fields are only consumed.
+     */
+    private static void readFields(@CheckForNull Object o, @CheckForNull Layout layout, DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            Object v = readValue(in);
+            if (o == null) {
+                continue;
+            }
+            Field f = layout.field(name);
+            if (f == null || (v == null && f.getType().isPrimitive())) {
+                LOGGER.log(Level.FINE, "Ignoring field {0} of {1}", new Object[] {name, o.getClass().getName()});
+                continue;
+            }
+            try {
+                f.set(o, v);
+            } catch (IllegalAccessException | IllegalArgumentException x) {
+                LOGGER.log(Level.FINE, "Ignoring field " + name + " of " + o.getClass().getName(), x);
+            }
+        }
+    }
+
+    private static void writeValue(@CheckForNull Object v, DataOutputStream out) throws IOException {
+        if (v == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (v instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString((String) v, out);
+        } else if (v instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Short) {
+            out.writeByte(VALUE_SHORT);
+            out.writeShort((Short) v);
+        } else if (v instanceof Byte) {
+            out.writeByte(VALUE_BYTE);
+            out.writeByte((Byte) v);
+        } else if (v instanceof Character) {
+            out.writeByte(VALUE_CHAR);
+            out.writeChar((Character) v);
+        } else if (v instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Float) {
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof List) {
+            out.writeByte(VALUE_STRING_LIST);
+            @SuppressWarnings("unchecked") List<String> strings = (List<String>) v;
+            writeStrings(strings, out);
+        } else if (v instanceof Set) {
+            out.writeByte(VALUE_LABEL_SET);
+            @SuppressWarnings("unchecked") Set<LabelAtom> labels = (Set<LabelAtom>) v;
+            List<String> names = new ArrayList<>(labels.size());
+            for (LabelAtom l : labels) {
+                names.add(l.getName());
+            }
+            writeStrings(names, out);
+        } else {
+            throw new IOException("Unexpected value of type " + v.getClass().getName());
+        }
+    }
+
+    private static @CheckForNull Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case VALUE_NULL: return null;
+            case VALUE_STRING: return readString(in);
+            case VALUE_LONG: return in.readLong();
+            case VALUE_INT: return in.readInt();
+            case VALUE_BOOLEAN: return in.readBoolean();
+            case VALUE_SHORT: return in.readShort();
+            case VALUE_BYTE: return in.readByte();
+            case VALUE_CHAR: return in.readChar();
+            case VALUE_DOUBLE: return in.readDouble();
+            case VALUE_FLOAT: return in.readFloat();
+            case VALUE_STRING_LIST: return readStrings(in);
+            case VALUE_LABEL_SET:
+                List<String> names = readStrings(in);
+                if (names == null) {
+                    return null;
+                }
+                Set<LabelAtom> labels = new TreeSet<>();
+                for (String name : names) {
+                    LabelAtom l = LabelAtom.get(name);
+                    if (l != null) {
+                        labels.add(l);
+                    }
+                }
+                return labels;
+            default:
+                throw new IOException("Unknown value type " + tag);
+        }
+    }
+
+    /** Unlike {@link DataOutputStream#writeUTF} handles nulls and strings of any length. */
+    private static void writeString(@CheckForNull String s, DataOutputStream out) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static @CheckForNull String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(@CheckForNull Collection<String> strings, DataOutputStream out) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                writeString(s, out);
+            }
+        }
+    }
+
+    private static @CheckForNull List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size == -1) {
+            return null;
+        } else if (size < 0) {
+            throw new IOException("Invalid list size " + size);
+        }
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /** The persistent fields of a node or action class, beyond those of {@link FlowNode} itself. */
+    static final class Layout {
+        final List<Field> fields;
+        /** Whether all of {@link #fields} have types we can write, and nothing else is needed to restore an instance. */
+        final boolean encodable;
+
+        Layout(List<Field> fields, boolean encodable) {
+            this.fields = fields;
+            this.encodable = encodable;
+        }
+
+        @CheckForNull Field field(String name) {
+            for (Field f : fields) {
+                if (f.getName().equals(name)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final ClassValue<Layout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            Class<?> stop = FlowNode.class.isAssignableFrom(type) ? FlowNode.class : Object.class;
+            boolean encodable = !type.isAnonymousClass() && !type.isLocalClass()
+                    && !(type.isMemberClass() && !Modifier.isStatic(type.getModifiers()));
+            Converter converter = SimpleXStreamFlowNodeStorage.XSTREAM.getConverterLookup().lookupConverterForType(type);
+            // Nodes go through the storage's own converter, which only adds handling of a legacy field on top of reflection.
+            if (!(converter instanceof RobustReflectionConverter) && !(converter instanceof ReflectionConverter) && converter != SimpleXStreamFlowNodeStorage.NODE_CONVERTER) {
+                encodable = false;
+            }
+            if (stop == FlowNode.class && !FLOW_NODE_FIELDS_KNOWN) {
+                encodable = false;
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != stop; c = c.getSuperclass()) {
+                if (hasMethod(c, "readResolve") || hasMethod(c, "writeReplace")) {
+                    encodable = false;
+                }
+                List<Field> declared = new ArrayList<>();
+                for (Field f : c.getDeclaredFields()) {
+                    int mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+                        continue;
+                    }
+                    try {
+                        f.setAccessible(true);
+                    } catch (RuntimeException x) {
+                        encodable = false;
+                        continue;
+                    }
+                    if (f.isSynthetic() || !isSimple(f)) {
+                        encodable = false;
+                    }
+                    declared.add(f);
+                }
+                // getDeclaredFields makes no promise about ordering
+                declared.sort(Comparator.comparing(Field::getName));
+                fields.addAll(0, declared);
+            }
+            return new Layout(fields, encodable);
+        }
+    };
+
+    private static boolean hasMethod(Class<?> c, String name) {
+        try {
+            c.getDeclaredMethod(name);
+            return true;
+        } catch (NoSuchMethodException x) {
+            return false;
+        }
+    }
+
+    private static boolean isSimple(Field f) {
+        Class<?> t = f.getType();
+        if (t.isPrimitive() || t == String.class || t == Boolean.class || t == Byte.class || t == Short.class
+                || t == Character.class || t == Integer.class || t == Long.class || t == Float.class || t == Double.class) {
+            return true;
+        }
+        Type g = f.getGenericType();
+        if (!(g instanceof ParameterizedType) || ((ParameterizedType) g).getActualTypeArguments().length != 1) {
+            return false;
+        }
+        Type arg = ((ParameterizedType) g).getActualTypeArguments()[0];
+        return (t.isAssignableFrom(ArrayList.class) && arg == String.class)
+                || (t.isAssignableFrom(TreeSet.class) && arg == LabelAtom.class);
+    }
+
+    /** The node or action is written field by field. */
+    private static final byte FORMAT_FIELDS = 0;
+    /** The node or action is written as XML. */
+    private static final byte FORMAT_XSTREAM = 1;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_LONG = 2;
+    private static final byte VALUE_INT = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+    private static final byte VALUE_SHORT = 5;
+    private static final byte VALUE_BYTE = 6;
+    private static final byte VALUE_CHAR = 7;
+    private static final byte VALUE_DOUBLE = 8;
+    private static final byte VALUE_FLOAT = 9;
+    private static final byte VALUE_STRING_LIST = 10;
+    private static final byte VALUE_LABEL_SET = 11;
+
+    /**
+     * Common node and action types, written as their index in this list rather than by name.
+     * The index is persisted, so only ever append to this list.
+     */
+    private static final List<String> KNOWN_TYPES = List.of(
+            "org.jenkinsci.plugins.workflow.graph.FlowStartNode",
+            "org.jenkinsci.plugins.workflow.graph.FlowEndNode",
+            "org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode",
+            "org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode",
+            "org.jenkinsci.plugins.workflow.cps.nodes.StepEndNode",
+            "org.jenkinsci.plugins.workflow.actions.TimingAction",
+            "org.jenkinsci.plugins.workflow.actions.LabelAction",
+            "org.jenkinsci.plugins.workflow.actions.BodyInvocationAction",
+            "org.jenkinsci.plugins.workflow.support.actions.LogStorageAction",
+            "org.jenkinsci.plugins.workflow.support.actions.WorkspaceActionImpl",
+            "org.jenkinsci.plugins.workflow.support.actions.PauseAction");
+
+    static final Field FlowNode$id;
+    static final Field FlowNode$parentIds;
+    /** Whether {@link #FlowNode$id} and {@link #FlowNode$parentIds} are the only persistent state of {@link FlowNode} itself. */
+    private static final boolean FLOW_NODE_FIELDS_KNOWN;
+
+    static {
+        try {
+            FlowNode$id = FlowNode.class.getDeclaredField("id");
+            FlowNode$id.setAccessible(true);
+            FlowNode$parentIds = FlowNode.class.getDeclaredField("parentIds");
+            FlowNode$parentIds.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new Error(e);
+        }
+        boolean known = true;
+        for (Field f : FlowNode.class.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod) && !f.equals(FlowNode$id) && !f.equals(FlowNode$parentIds)) {
+                known = false;
+            }
+        }
+        FLOW_NODE_FIELDS_KNOWN = known;
+    }
+}
@@ -24,6 +24,12 @@
 
 package org.jenkinsci.plugins.workflow.support.storage;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Functions;
 import hudson.Util;
 import hudson.model.Action;
 import hudson.util.IOUtils;
@@ -38,113 +44,531 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * {@link FlowNodeStorage} implementation that stores all the {@link FlowNode}s together in one file for efficient bulk I/O
  *
  * <p>This defers persisting until {@link #flush()} is called (or until we flush individual nodes explicitly or by
- *  storing them without specifying delayWritingActions=true. It also doesn't use the atomic write operations.
+ *  storing them without specifying delayWritingActions=true. By default it also doesn't force writes to disk:
+ *  the store is always written to a new file renamed over the old one, but only synced first if {@link #isAvoidAtomicWrite()} is turned off.
  *
  *  Performance characteristics: much better use of the filesystem and far more efficient read/write if you do it all at once.
- *  HOWEVER, if you insist on explicitly writing out each node, this reverts to overall O(n^2) performance, where n is node count.
+ *  When only a few nodes changed since the last flush, just those nodes are appended as delta records to a sidecar file,
+ *  which is folded back into the main store once it grows to half the size of the store (or via {@link #consolidate()}).
+ *  This keeps explicitly writing out each node from degrading to overall O(n^2) performance, where n is node count.
+ *
+ * <p>Whenever the store is written in full, a sidecar index with the byte range of each node in the store is written too.
+ *  Until something needs to modify the graph, individual nodes are then read through the index as they are requested,
+ *  rather than loading the whole store at once. The index records the length and checksum of the store it was written for,
+ *  and is ignored unless both match.
+ *  No index is written when the store is {@link #isCompressed() compressed}, since offsets into it would be meaningless.
+ *
+ * <p>Uncompressed stores are read through a memory mapping (see {@link #MMAP}), so that loading nodes of a large store,
+ *  whether all of them or a few through the index, parses the page cache directly rather than first copying the file onto the heap.
+ *
+ * <p>Reads may come from any thread and do not block on writes, which are serialized on the storage itself.
+ *  Once all nodes are loaded, readers see each node either before or after a concurrent write of it, never partway.
  *
  * For these reasons, this implementation should <strong>only</strong> be used where {@link FlowDurabilityHint#isPersistWithEveryStep()}
  * is <strong>false</strong>.
  */
 public class BulkFlowNodeStorage extends FlowNodeStorage {
+    private static final Logger LOGGER = Logger.getLogger(BulkFlowNodeStorage.class.getName());
+
+    static final String STORE_FILE_NAME = "flowNodeStore.xml";
+
+    static final String INDEX_FILE_NAME = "flowNodeStore.idx";
+
+    /**
+     * Whether to read uncompressed store files through a memory mapping.
+     * Off by default on Windows, where a mapped file cannot be replaced until the mapping is garbage collected.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean MMAP = SystemProperties.getBoolean(BulkFlowNodeStorage.class.getName() + ".MMAP", !Functions.isWindows());
+
+    /**
+     * Whether to encode delta records with {@link BinaryFlowNodeCodec} rather than as XML.
+     * Records in either format are always read back, but versions of this plugin without this option cannot read binary
+     *  records, so this is off by default; the store file itself is always XML.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean BINARY_DELTAS = SystemProperties.getBoolean(BulkFlowNodeStorage.class.getName() + ".BINARY_DELTAS", false);
+
     private final File dir;
 
     private final FlowExecution exec;
 
-    /** Lazy-loaded mapping. */
-    private transient Map<String, Tag> nodes = null;
+    /** Lazy-loaded mapping. Written only while synchronized; values are replaced rather than modified. */
+    private transient volatile Map<String, Tag> nodes = null;
 
     /** If true, we've been modified since last flush. */
-    private boolean isModified = false;
+    private volatile boolean isModified = false;
+
+    /** IDs of nodes modified since last flush. Guarded by this. */
+    private transient Set<String> dirtyIds = new HashSet<>();
+
+    /** Used to load single nodes while {@link #nodes} is not loaded. */
+    private transient volatile IndexedStore indexedStore;
+
+    /** If true, there is no usable index, so reading any node loads them all. Guarded by this. */
+    private transient boolean indexUnusable;
+
+    private final transient FlowNodeStorageStatistics statistics;
+
+    private final Cache<String, Tag> tagCache = Caffeine.newBuilder()
+            .softValues()
+            .build();
 
     File getStoreFile() throws IOException {
-        return new File(dir, "flowNodeStore.xml");
+        return new File(dir, STORE_FILE_NAME);
+    }
+
+    /** Holds nodes changed since the store file was last written in full. */
+    File getDeltaFile() {
+        return new File(dir, "flowNodeStore.delta");
+    }
+
+    /** Where a new store is written before replacing {@link #getStoreFile}. */
+    File getTempStoreFile() {
+        return new File(dir, STORE_FILE_NAME + ".tmp");
+    }
+
+    /** The {@link #getDeltaFile} as of a store rewrite in progress, whose records the new store includes; see {@link #commitStore}. */
+    File getFoldedDeltaFile() {
+        return new File(dir, "flowNodeStore.delta.folded");
+    }
+
+    /** Holds the byte range of each node in the store file. */
+    File getIndexFile() {
+        return new File(dir, INDEX_FILE_NAME);
+    }
+
+    /** IDs of all nodes in the storage, loading them if needed. */
+    Set<String> getNodeIds() throws IOException {
+        return new HashSet<>(getOrLoadNodes().keySet());
+    }
+
+    /** Removes the store and its sidecar files, for example once converted to another format. */
+    void deleteFiles() throws IOException {
+        // The store first: the deltas hold newer versions of nodes than the store, so must not be lost while it remains.
+        Files.deleteIfExists(getStoreFile().toPath());
+        Files.deleteIfExists(getTempStoreFile().toPath());
+        Files.deleteIfExists(getFoldedDeltaFile().toPath());
+        Files.deleteIfExists(getIndexFile().toPath());
+        Files.deleteIfExists(getDeltaFile().toPath());
     }
 
     public BulkFlowNodeStorage(FlowExecution exec, File dir) {
         this.exec = exec;
         this.dir = dir;
         this.nodes = null;
+        this.statistics = FlowNodeStorageStatistics.create(dir.getPath());
         this.setAvoidAtomicWrite(true);
     }
 
     /** Loads the nodes listing, lazily - so loading the {@link FlowExecution} doesn't trigger a more complex load. */
-    @SuppressWarnings("unchecked")
     private Map<String, Tag> getOrLoadNodes() throws IOException {
+        Map<String, Tag> loaded = nodes;
+        return loaded != null ? loaded : loadNodes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Map<String, Tag> loadNodes() throws IOException {
         if (nodes == null) {
             if (dir.exists()) {
+                recoverStore();
                 File storeFile = getStoreFile();
-                if (storeFile.exists()) {
+                File deltaFile = getDeltaFile();
+                if (storeFile.exists() || deltaFile.exists()) {
+                    long start = System.nanoTime();
+                    statistics.recordMiss();
                     Map<String, Tag> roughNodes = null;
-                    try {
-                        roughNodes = (Map<String, Tag>) (XSTREAM.fromXML(getStoreFile()));
-                    } catch (Exception ex) {
-                       nodes = new HashMap<>();
-                       throw new IOException("Failed to read nodes", ex);
-                    }
-                    if (roughNodes == null) {
-                        nodes = new HashMap<>();
-                        throw new IOException("Unable to load nodes, invalid data");
-                    }
-                    for (Tag t : roughNodes.values()) {
-                        FlowNode fn = t.node;
+                    if (storeFile.exists()) {
                         try {
-                            FlowNode$exec.set(fn, exec);
-                        } catch (IllegalAccessException e) {
-                            throw (IllegalAccessError) new IllegalAccessError("Failed to set owner").initCause(e);
+                            roughNodes = (Map<String, Tag>) readStore(storeFile);
+                        } catch (Exception ex) {
+                           nodes = new ConcurrentHashMap<>();
+                           throw new IOException("Failed to read nodes", ex);
+                        }
+                        if (roughNodes == null) {
+                            nodes = new ConcurrentHashMap<>();
+                            throw new IOException("Unable to load nodes, invalid data");
                         }
-                        t.storeActions();
-                        for (FlowNodeAction a : Util.filter(t.actions(), FlowNodeAction.class)) {
-                            a.onLoad(fn);
+                    } else {
+                        roughNodes = new HashMap<>();
+                    }
+                    if (deltaFile.exists()) {
+                        long valid = readDeltas(deltaFile, roughNodes);
+                        if (valid < deltaFile.length()) {
+                            // Drop the incomplete record so that later deltas are not appended after it.
+                            try (FileChannel ch = FileChannel.open(deltaFile.toPath(), StandardOpenOption.WRITE)) {
+                                ch.truncate(valid);
+                            }
                         }
                     }
-                    nodes = roughNodes;
+                    // Keep any nodes we already handed out from lazy loading, so callers see a consistent graph.
+                    Map<String, Tag> alreadyLoaded = new HashMap<>(tagCache.asMap());
+                    IndexedStore store = indexedStore;
+                    if (store != null) {
+                        alreadyLoaded.putAll(store.deltas);
+                    }
+                    for (Map.Entry<String, Tag> e : roughNodes.entrySet()) {
+                        Tag loaded = alreadyLoaded.get(e.getKey());
+                        if (loaded != null) {
+                            e.setValue(loaded);
+                        } else {
+                            prepare(e.getValue());
+                        }
+                    }
+                    nodes = new ConcurrentHashMap<>(roughNodes);
+                    statistics.recordFullLoad(System.nanoTime() - start);
                 } else {
-                    nodes = new HashMap<>();
+                    nodes = new ConcurrentHashMap<>();
                 }
             } else {
                 IOUtils.mkdirs(dir);
-                nodes = new HashMap<>();
+                nodes = new ConcurrentHashMap<>();
             }
+            indexedStore = null;
+            indexUnusable = true;
+            tagCache.invalidateAll();
         }
         return nodes;
     }
 
+    private void prepare(Tag t) {
+        FlowNode fn = t.node;
+        try {
+            FlowNode$exec.set(fn, exec);
+        } catch (IllegalAccessException e) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to set owner").initCause(e);
+        }
+        t.storeActions();
+        for (FlowNodeAction a : Util.filter(t.actions(), FlowNodeAction.class)) {
+            a.onLoad(fn);
+        }
+    }
+
+    /** Looks up one node, through the index if all nodes have not been loaded yet. */
+    @CheckForNull
+    private Tag getTag(@NonNull String id) throws IOException {
+        Map<String, Tag> loaded = nodes;
+        if (loaded != null) {
+            return loaded.get(id);
+        }
+        IndexedStore store = getOrLoadIndex();
+        if (store != null) {
+            Tag t = store.deltas.get(id);
+            if (t != null) {
+                return t;
+            }
+            if (!store.ranges.containsKey(id)) {
+                return null;
+            }
+            try {
+                return tagCache.get(id, k -> {
+                    statistics.recordMiss();
+                    try {
+                        return loadTag(k, store);
+                    } catch (IOException x) {
+                        throw new CompletionException(x);
+                    }
+                });
+            } catch (CompletionException x) {
+                throw new IOException(x.getCause());
+            }
+        }
+        return getOrLoadNodes().get(id);
+    }
+
+    /** @return the index of the store file, or null if there is none matching the store */
+    @CheckForNull
+    private IndexedStore getOrLoadIndex() throws IOException {
+        IndexedStore store = indexedStore;
+        return store != null ? store : loadIndex();
+    }
+
+    @CheckForNull
+    private synchronized IndexedStore loadIndex() throws IOException {
+        if (indexedStore == null && !indexUnusable && nodes == null) {
+            if (dir.exists()) {
+                recoverStore();
+            }
+            File indexFile = getIndexFile();
+            File storeFile = getStoreFile();
+            if (!indexFile.exists() || !storeFile.exists()) {
+                indexUnusable = true;
+                return null;
+            }
+            MappedByteBuffer map = map(storeFile);
+            Map<String, long[]> idx = readIndex(indexFile, storeFile, map);
+            if (idx == null) {
+                indexUnusable = true;
+                return null;
+            }
+            Map<String, Tag> deltas = new HashMap<>();
+            File deltaFile = getDeltaFile();
+            if (deltaFile.exists()) {
+                readDeltas(deltaFile, deltas);
+            }
+            for (Tag t : deltas.values()) {
+                prepare(t);
+            }
+            indexedStore = new IndexedStore(idx, deltas, map);
+        }
+        return indexedStore;
+    }
+
+    /** A snapshot of what is needed to load single nodes from the store; replaced rather than modified, so readers need no lock. */
+    private static final class IndexedStore {
+        /** Byte range of each node in the store file. */
+        final Map<String, long[]> ranges;
+        /** Nodes read from the delta file, which take precedence over {@link #ranges}. */
+        final Map<String, Tag> deltas;
+        /** Mapping of the store file, or null to read it with ordinary file I/O. */
+        final @CheckForNull MappedByteBuffer map;
+
+        IndexedStore(Map<String, long[]> ranges, Map<String, Tag> deltas, @CheckForNull MappedByteBuffer map) {
+            this.ranges = ranges;
+            this.deltas = deltas;
+            this.map = map;
+        }
+    }
+
+    private Tag loadTag(String id, IndexedStore store) throws IOException {
+        long start = System.nanoTime();
+        long[] range = store.ranges.get(id);
+        File storeFile = getStoreFile();
+        Object o;
+        try {
+            InputStream in;
+            if (store.map != null) {
+                in = new ByteBufferInputStream(store.map.slice((int) range[0], (int) range[1]));
+            } else {
+                byte[] bytes = new byte[(int) range[1]];
+                try (RandomAccessFile raf = new RandomAccessFile(storeFile, "r")) {
+                    raf.seek(range[0]);
+                    raf.readFully(bytes);
+                }
+                in = new ByteArrayInputStream(bytes);
+            }
+            try (InputStream is = in) {
+                o = XSTREAM.fromXML(is);
+            } catch (RuntimeException x) {
+                throw new IOException("Failed to read node " + id + " from " + storeFile + "@" + range[0], x);
+            }
+            if (!(o instanceof Tag) || ((Tag) o).node == null || !id.equals(((Tag) o).node.getId())) {
+                throw new IOException("Failed to read node " + id + " from " + storeFile + "@" + range[0] + ", invalid data");
+            }
+        } catch (IOException x) {
+            Map<String, Tag> loaded = nodes;
+            if (store.map == null && loaded != null) {
+                // Without a mapping we read whatever file is current; it was replaced since the index was read, after all nodes were loaded.
+                return loaded.get(id);
+            }
+            throw x;
+        }
+        Tag t = (Tag) o;
+        prepare(t);
+        statistics.recordLoad(System.nanoTime() - start);
+        return t;
+    }
+
+    /** Reads the whole store, through a memory mapping if it is uncompressed and {@link #MMAP} is set. */
+    private static Object readStore(File storeFile) throws IOException {
+        MappedByteBuffer map = map(storeFile);
+        if (map == null || (map.limit() >= 2 && map.get(0) == (byte) GZIPInputStream.GZIP_MAGIC && map.get(1) == (byte) (GZIPInputStream.GZIP_MAGIC >> 8))) {
+            return PipelineIOUtils.readByXStream(storeFile, XSTREAM);
+        }
+        try (InputStream in = new ByteBufferInputStream(map)) {
+            return XSTREAM.fromXML(in);
+        } catch (RuntimeException | Error e) {
+            throw new IOException("Unable to read " + storeFile, e);
+        }
+    }
+
+    /**
+     * Maps a store file read-only.
+     * The mapping stays valid when the store is later replaced, since {@link #writeStore} always renames a new file over it
+     *  rather than truncating and rewriting the mapped one, so readers holding an older {@link IndexedStore} keep reading the old contents.
+     * @return null if {@link #MMAP} is off, or the file is empty or too large to map in one piece
+     */
+    @CheckForNull
+    private static MappedByteBuffer map(File storeFile) throws IOException {
+        if (!MMAP) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(storeFile.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /** Reads a buffer without copying it first, for example a slice of {@link IndexedStore#map}. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Reads the index, returning null if it is incomplete or not for the current contents of the store.
+     * The store is identified by its length and checksum, so an index left over from another store of the same length is not used.
+     * @param map the mapping of the store, if any, to compute its checksum from
+     */
+    @CheckForNull
+    private static Map<String, long[]> readIndex(File indexFile, File storeFile, @CheckForNull MappedByteBuffer map) throws IOException {
+        long storeLength = storeFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+            if (in.readLong() != INDEX_MAGIC || in.readShort() != INDEX_VERSION || in.readLong() != storeLength || in.readInt() != checksum(storeFile, map)) {
+                LOGGER.log(Level.FINE, "Ignoring stale or unrecognized {0}", indexFile);
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, long[]> idx = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (offset < 0 || length <= 0 || offset + length > storeLength) {
+                    LOGGER.log(Level.FINE, "Ignoring corrupt {0}", indexFile);
+                    return null;
+                }
+                idx.put(id, new long[] {offset, length});
+            }
+            return idx;
+        } catch (EOFException x) {
+            LOGGER.log(Level.FINE, "Ignoring incomplete " + indexFile, x);
+            return null;
+        }
+    }
+
+    /** CRC-32 of the whole store, as recorded in the index by {@link #writeIndex}. */
+    private static int checksum(File storeFile, @CheckForNull MappedByteBuffer map) throws IOException {
+        CRC32 crc = new CRC32();
+        if (map != null) {
+            crc.update(map.duplicate());
+        } else {
+            try (InputStream in = Files.newInputStream(storeFile.toPath())) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                }
+            }
+        }
+        return (int) crc.getValue();
+    }
+
     @Override
     @CheckForNull
     public FlowNode getNode(@NonNull String id) throws IOException {
-        Tag t = getOrLoadNodes().get(id);
+        statistics.recordRead();
+        Tag t = getTag(id);
         return (t != null) ? t.node : null;
     }
 
+    /** Asked for all nodes, reads the store in one go; otherwise loads just the requested nodes through the index. */
     @Override
-    public void storeNode(@NonNull FlowNode n, boolean delayWritingActions) throws IOException {
-        Tag t = getOrLoadNodes().get(n.getId());
-        if (t != null) {
-            t.node = n;
-            List<Action> act = n.getActions();
-            t.actions = new ArrayList<>(act);
+    public void preload(@CheckForNull Collection<String> ids) throws IOException {
+        if (ids == null) {
+            getOrLoadNodes();
         } else {
-            getOrLoadNodes().put(n.getId(), new Tag(n, n.getActions()));
+            for (String id : ids) {
+                getTag(id);
+            }
         }
+    }
+
+    @Override
+    public synchronized void storeNode(@NonNull FlowNode n, boolean delayWritingActions) throws IOException {
+        getOrLoadNodes().put(n.getId(), new Tag(n, n.getActions()));
+        dirtyIds.add(n.getId());
         isModified = true;
         if (!delayWritingActions) {
             flush();
@@ -156,6 +580,17 @@ public class BulkFlowNodeStorage extends FlowNodeStorage {
         flushNode(n);
     }
 
+    /** Flushes once for the whole batch, rather than once per node. */
+    @Override
+    public synchronized void storeNodes(@NonNull Collection<FlowNode> nodes, boolean delayWritingActions) throws IOException {
+        for (FlowNode n : nodes) {
+            storeNode(n, true);
+        }
+        if (!delayWritingActions) {
+            flush();
+        }
+    }
+
     /**
      * Persists a single FlowNode to disk (if not already persisted).
      * @param n Node to persist
@@ -166,20 +601,327 @@ public class BulkFlowNodeStorage extends FlowNodeStorage {
         storeNode(n, false);
     }
 
-    /** Force persisting any nodes that had writing deferred */
+    /**
+     * Force persisting any nodes that had writing deferred.
+     * Only the modified nodes are written, as delta records, unless it is time to rewrite the store in full.
+     */
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
+        long start = System.nanoTime();
         if (nodes != null && isModified) {
             if (!dir.exists()) {
                 IOUtils.mkdirs(dir);
             }
-            Map<String, Tag> sorted = new TreeMap<>(BulkFlowNodeStorage::sort);
-            sorted.putAll(nodes);
-            // Serialize as LinkedHashMap so that XStream does not try to save the comparator:
-            PipelineIOUtils.writeByXStream(new LinkedHashMap<>(sorted), getStoreFile(), XSTREAM, !this.isAvoidAtomicWrite());
+            File storeFile = getStoreFile();
+            File deltaFile = getDeltaFile();
+            if (!storeFile.exists() || dirtyIds.size() * 2 >= nodes.size() || deltaFile.length() * 2 >= storeFile.length()) {
+                writeStore();
+            } else {
+                writeDeltas(deltaFile);
+            }
+            dirtyIds.clear();
+            isModified = false;
+            statistics.recordFlush(exec, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public @NonNull FlowNodeStorageStatistics getStatistics() {
+        return statistics;
+    }
 
+    /** Folds any delta records back into the store file, rewriting it in full. */
+    public synchronized void consolidate() throws IOException {
+        getOrLoadNodes();
+        if (isModified || getDeltaFile().exists()) {
+            writeStore();
+            dirtyIds.clear();
+            isModified = false;
+        }
+    }
+
+    /** Removes nodes not reachable from the heads, then rewrites the store in full, which also folds in any delta records. */
+    @Override
+    public synchronized int compact(@NonNull Collection<String> headIds) throws IOException {
+        Set<String> reachable = reachableFrom(headIds);
+        Map<String, Tag> all = getOrLoadNodes();
+        int dropped = 0;
+        for (Iterator<String> it = all.keySet().iterator(); it.hasNext();) {
+            String id = it.next();
+            if (!reachable.contains(id)) {
+                it.remove();
+                tagCache.invalidate(id);
+                dropped++;
+            }
+        }
+        if (dropped > 0 || isModified || getDeltaFile().exists()) {
+            writeStore();
+            dirtyIds.clear();
             isModified = false;
         }
+        LOGGER.log(Level.FINE, "Dropped {0} unreachable nodes from {1}", new Object[] {dropped, dir});
+        return dropped;
+    }
+
+    /**
+     * Writes all nodes to the store file, and the byte range of each node to the index file.
+     * Any old index is deleted before the new store is made current, so that it is never read along with the new store.
+     * The store has the same layout as a {@link LinkedHashMap} serialized by XStream, but each {@link Tag} is marshalled
+     * on its own so that it can also be unmarshalled on its own.
+     */
+    private void writeStore() throws IOException {
+        Map<String, Tag> sorted = new TreeMap<>(BulkFlowNodeStorage::sort);
+        sorted.putAll(nodes);
+        // Never rewrite the store in place, even if isAvoidAtomicWrite: readers may still have it mapped (see map).
+        File target = getTempStoreFile();
+        Files.deleteIfExists(getIndexFile().toPath());
+        if (isCompressed()) {
+            // Serialize as LinkedHashMap so that XStream does not try to save the comparator:
+            PipelineIOUtils.writeByXStream(new LinkedHashMap<>(sorted), target, XSTREAM, !this.isAvoidAtomicWrite(), true);
+            statistics.recordWrite(target.length());
+            if (!isAvoidAtomicWrite()) {
+                statistics.recordSync();
+            }
+            commitStore(target);
+            return;
+        }
+        Map<String, long[]> ranges = new LinkedHashMap<>();
+        long length;
+        int checksum;
+        try (FileChannel ch = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OffsetTrackingOutputStream os = new OffsetTrackingOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024));
+            Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+            w.write("<?xml version='1.1' encoding='UTF-8'?>\n");
+            HierarchicalStreamWriter writer = new PrettyPrintWriter(w);
+            writer.startNode("linked-hash-map");
+            for (Map.Entry<String, Tag> e : sorted.entrySet()) {
+                writer.startNode("entry");
+                writer.startNode("string");
+                writer.setValue(e.getKey());
+                writer.endNode();
+                writer.flush();
+                long start = os.count;
+                XSTREAM.marshal(e.getValue(), writer);
+                writer.flush();
+                ranges.put(e.getKey(), new long[] {start, os.count - start});
+                writer.endNode();
+            }
+            writer.endNode();
+            writer.flush();
+            os.flushFully();
+            length = os.count;
+            checksum = (int) os.crc.getValue();
+            statistics.recordWrite(length);
+            if (!isAvoidAtomicWrite()) {
+                ch.force(true);
+                statistics.recordSync();
+            }
+        }
+        commitStore(target);
+        writeIndex(ranges, length, checksum);
+    }
+
+    /**
+     * Makes a store written to {@link #getTempStoreFile} current, and discards the delta records it already includes.
+     * The delta file is first renamed to {@link #getFoldedDeltaFile} (or that file created), marking the temporary store as complete.
+     *  Should we crash before the temporary store is renamed over the old one, {@link #recoverStore} finishes the job;
+     *  should we crash after, it deletes the folded deltas.
+     *  Either way they are never replayed over a store which includes newer versions of their nodes.
+     */
+    private void commitStore(File target) throws IOException {
+        File storeFile = getStoreFile();
+        Path delta = getDeltaFile().toPath();
+        Path folded = getFoldedDeltaFile().toPath();
+        if (Files.exists(delta)) {
+            Files.move(delta, folded, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.newOutputStream(folded).close();
+        }
+        Files.move(target.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(folded);
+    }
+
+    /** Completes or discards a rewrite of the store interrupted by a crash; see {@link #commitStore}. */
+    private void recoverStore() throws IOException {
+        File tmp = getTempStoreFile();
+        File folded = getFoldedDeltaFile();
+        if (folded.exists()) {
+            if (tmp.exists()) {
+                LOGGER.log(Level.WARNING, "Completing interrupted rewrite of {0}", getStoreFile());
+                Files.move(tmp.toPath(), getStoreFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(getIndexFile().toPath());
+            }
+            Files.delete(folded.toPath());
+        } else if (tmp.exists()) {
+            LOGGER.log(Level.FINE, "Discarding incomplete {0}", tmp);
+            Files.delete(tmp.toPath());
+        }
+    }
+
+    /**
+     * Rewrites the store file of an existing storage directory, such as that of a completed build, with or without compression.
+     * Must not be used on the directory of a running execution.
+     * @return true if the store was rewritten
+     */
+    public static boolean recompress(@NonNull File dir, boolean compress) throws IOException {
+        File storeFile = new File(dir, STORE_FILE_NAME);
+        if (!storeFile.exists() || !PipelineIOUtils.recompress(storeFile, compress)) {
+            return false;
+        }
+        // Any index now refers to offsets in a different encoding; it is rewritten on the next full write of an uncompressed store.
+        Files.deleteIfExists(new File(dir, INDEX_FILE_NAME).toPath());
+        return true;
+    }
+
+    /** Writes the index atomically: magic, version, store length, store checksum, count, then ID, offset and length per node. */
+    private void writeIndex(Map<String, long[]> ranges, long storeLength, int storeChecksum) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeLong(INDEX_MAGIC);
+        out.writeShort(INDEX_VERSION);
+        out.writeLong(storeLength);
+        out.writeInt(storeChecksum);
+        out.writeInt(ranges.size());
+        for (Map.Entry<String, long[]> e : ranges.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue()[0]);
+            out.writeInt((int) e.getValue()[1]);
+        }
+        out.flush();
+        PipelineIOUtils.writeBytes(buf.toByteArray(), getIndexFile(), true);
+        statistics.recordWrite(buf.size());
+        statistics.recordSync();
+    }
+
+    /** Counts and checksums bytes written, ignoring intermediate flushes so that recording an offset does not cost a write to disk. */
+    private static final class OffsetTrackingOutputStream extends FilterOutputStream {
+        long count;
+        final CRC32 crc = new CRC32();
+
+        OffsetTrackingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            // see flushFully
+        }
+
+        void flushFully() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Appends one record per modified node: int length, int CRC-32 of the payload, payload.
+     * The payload is either Tag XML, or with {@link #BINARY_DELTAS} a {@link FlowNodeCodec} ID followed by the encoded node;
+     *  the two are told apart by the first byte, since XML always starts with {@code <} and no codec uses that ID.
+     */
+    private void writeDeltas(File deltaFile) throws IOException {
+        FlowNodeCodec codec = BINARY_DELTAS ? BinaryFlowNodeCodec.INSTANCE : null;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        List<String> sortedIds = new ArrayList<>(dirtyIds);
+        sortedIds.sort(BulkFlowNodeStorage::sort);
+        for (String id : sortedIds) {
+            Tag t = nodes.get(id);
+            if (t == null) {
+                continue;
+            }
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            if (codec != null) {
+                DataOutputStream dos = new DataOutputStream(payload);
+                dos.writeByte(codec.getId());
+                codec.write(t.node, t.actions(), dos);
+                dos.flush();
+            } else {
+                XSTREAM.toXMLUTF8(t, payload);
+            }
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            buf.write(ByteBuffer.allocate(DELTA_RECORD_OVERHEAD).putInt(bytes.length).putInt((int) crc.getValue()).array());
+            buf.write(bytes);
+        }
+        try (FileChannel ch = FileChannel.open(deltaFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            ByteBuffer records = ByteBuffer.wrap(buf.toByteArray());
+            while (records.hasRemaining()) {
+                ch.write(records);
+            }
+            statistics.recordWrite(records.limit());
+            if (!isAvoidAtomicWrite()) {
+                ch.force(false);
+                statistics.recordSync();
+            }
+        }
+    }
+
+    /**
+     * Replays delta records over nodes loaded from the store file, stopping at the first incomplete record.
+     * @return the length of the valid records
+     */
+    private static long readDeltas(File deltaFile, Map<String, Tag> roughNodes) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(deltaFile.toPath())))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException x) {
+                    return valid;
+                }
+                byte[] bytes;
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    if (length <= 0) {
+                        throw new EOFException();
+                    }
+                    bytes = in.readNBytes(length);
+                    if (bytes.length < length) {
+                        throw new EOFException();
+                    }
+                } catch (EOFException x) {
+                    LOGGER.log(Level.WARNING, "Ignoring incomplete record at the end of {0}", deltaFile);
+                    return valid;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.log(Level.WARNING, "Ignoring corrupt record at the end of {0}", deltaFile);
+                    return valid;
+                }
+                Tag t;
+                try (InputStream is = new ByteArrayInputStream(bytes)) {
+                    if (bytes[0] == XML_RECORD_START) {
+                        t = (Tag) XSTREAM.fromXML(is);
+                    } else {
+                        DataInputStream dis = new DataInputStream(is);
+                        FlowNodeCodec.Decoded decoded = FlowNodeCodec.forId(dis.readByte()).read(dis);
+                        t = new Tag(decoded.node, decoded.actions);
+                    }
+                } catch (IOException | RuntimeException x) {
+                    throw new IOException("Failed to read delta record from " + deltaFile, x);
+                }
+                if (t.node != null) {
+                    roughNodes.put(t.node.getId(), t);
+                }
+                valid += DELTA_RECORD_OVERHEAD + length;
+            }
+        }
     }
 
     private static int sort(String k1, String k2) {
@@ -192,7 +934,8 @@ public class BulkFlowNodeStorage extends FlowNodeStorage {
 
     @Override
     public List<Action> loadActions(@NonNull FlowNode node) throws IOException {
-        Tag t = getOrLoadNodes().get(node.getId());
+        statistics.recordRead();
+        Tag t = getTag(node.getId());
         return (t != null) ? t.actions() : Collections.emptyList();
     }
 
@@ -200,16 +943,11 @@ public class BulkFlowNodeStorage extends FlowNodeStorage {
      * Just stores this one node
      */
     @Override
-    public void saveActions(@NonNull FlowNode node, @NonNull List<Action> actions) throws IOException {
+    public synchronized void saveActions(@NonNull FlowNode node, @NonNull List<Action> actions) throws IOException {
         Map<String, Tag> map = getOrLoadNodes();
-        Tag t = map.get(node.getId());
-        if (t != null) {
-            t.node = node;
-            List<Action> act = node.getActions();
-            t.actions = new ArrayList<>(act);
-        } else {
-            map.put(node.getId(), new Tag(node, actions));
-        }
+        // Replace rather than modify the Tag, so that concurrent readers never see a node with the wrong actions.
+        map.put(node.getId(), new Tag(node, map.containsKey(node.getId()) ? node.getActions() : actions));
+        dirtyIds.add(node.getId());
         isModified = true;
     }
 
@@ -253,6 +991,12 @@ public class BulkFlowNodeStorage extends FlowNodeStorage {
 
     public static final XStream2 XSTREAM = new XStream2();
 
+    private static final int DELTA_RECORD_OVERHEAD = 8; // length + checksum
+    /** First byte of a delta record payload written as XML rather than by a {@link FlowNodeCodec}. */
+    private static final byte XML_RECORD_START = '<';
+    /*constant*/ static final long INDEX_MAGIC = 0x57464E6F6465496EL; // "WFNodeIn"
+    /*constant*/ static final short INDEX_VERSION = 2;
+
     private static final Field FlowNode$exec;
     private static final Method FlowNode_setActions;
 
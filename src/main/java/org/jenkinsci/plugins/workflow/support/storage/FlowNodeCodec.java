@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Action;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Converts a {@link FlowNode} and its actions to and from bytes, for storage formats which record
+ *  which codec was used for each node rather than being tied to XML:
+ *  {@link LogStructuredFlowNodeStorage} records, and {@link BulkFlowNodeStorage} delta records with {@link BulkFlowNodeStorage#BINARY_DELTAS}.
+ *
+ * <p>Decoded nodes are not yet attached to an execution; the storage is responsible for that,
+ *  as well as for storing the actions on the node and calling {@code onLoad}.
+ */
+interface FlowNodeCodec {
+
+    /**
+     * Persisted alongside each encoded node, so must never be reused for a different format.
+     * Must not be {@code '<'}, by which {@link BulkFlowNodeStorage} recognizes delta records written as plain XML.
+     */
+    byte getId();
+
+    void write(@NonNull FlowNode node, @NonNull List<Action> actions, @NonNull DataOutputStream out) throws IOException;
+
+    /** Reads a node previously written by {@link #write}; may consume the rest of the stream. */
+    @NonNull Decoded read(@NonNull DataInputStream in) throws IOException;
+
+    static FlowNodeCodec forId(byte id) throws IOException {
+        switch (id) {
+            case XStreamFlowNodeCodec.ID:
+                return XStreamFlowNodeCodec.INSTANCE;
+            case BinaryFlowNodeCodec.ID:
+                return BinaryFlowNodeCodec.INSTANCE;
+            default:
+                throw new IOException("Unknown flow node codec " + id);
+        }
+    }
+
+    /** A node and its actions as read back by a codec. */
+    final class Decoded {
+        final @NonNull FlowNode node;
+        final @NonNull List<Action> actions;
+
+        Decoded(@NonNull FlowNode node, @NonNull List<Action> actions) {
+            this.node = node;
+            this.actions = Collections.unmodifiableList(actions);
+        }
+    }
+}
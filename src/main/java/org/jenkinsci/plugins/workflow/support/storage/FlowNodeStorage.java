@@ -29,8 +29,18 @@ import org.jenkinsci.plugins.workflow.graph.FlowActionStorage;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * Abstraction of various ways to persist {@link FlowNode}, for those {@link FlowExecution}s
@@ -44,9 +54,23 @@ import edu.umd.cs.findbugs.annotations.NonNull;
  * @author Sam Van Oort
  */
 public abstract class FlowNodeStorage implements FlowActionStorage {
+    /** Default for {@link #setSaveActionsDebounceMillis}. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static long SAVE_ACTIONS_DEBOUNCE_MILLIS = SystemProperties.getLong(FlowNodeStorage.class.getName() + ".SAVE_ACTIONS_DEBOUNCE_MILLIS", 0L);
+
+    /** Default for {@link #setCompressed}. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean COMPRESS = SystemProperties.getBoolean(FlowNodeStorage.class.getName() + ".COMPRESS", false);
+
     // Set up as "avoid" because an unset field will default to false when deserializing and not explicitly set.
     private transient boolean avoidAtomicWrite = false;
 
+    private transient long saveActionsDebounceMillis = SAVE_ACTIONS_DEBOUNCE_MILLIS;
+
+    private transient boolean compressed = COMPRESS;
+
     /** If true, we use non-atomic write of XML files for this storage. See {@link hudson.util.AtomicFileWriter}. */
     public boolean isAvoidAtomicWrite() {
         return avoidAtomicWrite;
@@ -58,6 +82,34 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
         this.avoidAtomicWrite = avoidAtomicWrite;
     }
 
+    /**
+     * If true, implementations which support it write their files gzip-compressed.
+     * Files are read correctly either way, so this can be changed at any time.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /** Set whether files should be written gzip-compressed, where supported. */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * How long an implementation may hold back the write caused by {@link #saveActions(FlowNode, List)},
+     *  so that further calls for the same node within that window collapse into a single write.
+     * Held back writes are written right away by {@link #flush()}. Zero (the default) means no delay.
+     * Implementations which always write immediately, or never write until flushed, may ignore this.
+     */
+    public long getSaveActionsDebounceMillis() {
+        return saveActionsDebounceMillis;
+    }
+
+    /** Set how long writes from {@link #saveActions(FlowNode, List)} may be held back; see {@link #getSaveActionsDebounceMillis()}. */
+    public void setSaveActionsDebounceMillis(long saveActionsDebounceMillis) {
+        this.saveActionsDebounceMillis = saveActionsDebounceMillis;
+    }
+
     /**
      * @return null
      *      If no node of the given ID has been persisted before.
@@ -86,6 +138,18 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
         storeNode(n); // Default impl, override if you support delaying writes
     }
 
+    /**
+     * Registers several nodes at once, as {@link #storeNode(FlowNode, boolean)} would each of them,
+     *  so that implementations can group the resulting writes: for example writing them in one record, or with one sync.
+     * Useful where many nodes are created together, such as when starting parallel branches.
+     * The default implementation stores them one at a time.
+     */
+    public void storeNodes(@NonNull Collection<FlowNode> nodes, boolean delayWritingActions) throws IOException {
+        for (FlowNode n : nodes) {
+            storeNode(n, delayWritingActions);
+        }
+    }
+
     /**
      * Flushes the node if needed, and if supported, marks it as needing to flush with EVERY write to the {@link FlowNode#actions}.
      */
@@ -98,6 +162,16 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
         // Only needs implementation if you're not guaranteeing persistence at all times
     }
 
+    /**
+     * Loads nodes into memory ahead of their use, for example when resuming an execution, where that is cheaper than
+     *  loading them one at a time on demand. IDs of nodes not in the storage are ignored.
+     * The default implementation does nothing.
+     * @param ids IDs of the nodes to load, or null for all nodes in the storage
+     */
+    public void preload(@CheckForNull Collection<String> ids) throws IOException {
+        // Only needs implementation if loading nodes in bulk is cheaper than loading them on demand
+    }
+
     /** Invoke this to insure any unwritten {@link FlowNode} data is persisted to disk.
      *  Should be invoked to ensure disk state is persisted.
      */
@@ -105,8 +179,63 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
         // Only needs implementation if you're not already guaranteeing persistence at all times
     }
 
+    /**
+     * Drops nodes which cannot be reached from the given heads by following their parents, such as records left behind
+     *  by branches which were abandoned partway, and rewrites the storage without superseded records where that applies.
+     * Meant to be called once an execution has completed, with the IDs of its {@link FlowExecution#getCurrentHeads},
+     *  so that less is kept for the build and later loads of it are faster. Must not be called while the execution is running.
+     * The default implementation does nothing.
+     * @param headIds IDs of the nodes to keep along with all their ancestors; must all be in this storage
+     * @return the number of nodes dropped
+     * @throws IllegalArgumentException if no heads are given, or one of them is not in this storage
+     */
+    public int compact(@NonNull Collection<String> headIds) throws IOException {
+        return 0;
+    }
+
+    /** IDs of the given heads and all their ancestors, for {@link #compact}. */
+    @NonNull Set<String> reachableFrom(@NonNull Collection<String> headIds) throws IOException {
+        if (headIds.isEmpty()) {
+            throw new IllegalArgumentException("Refusing to drop every node: no heads given");
+        }
+        for (String id : headIds) {
+            if (getNode(id) == null) {
+                throw new IllegalArgumentException("Head " + id + " is not in this storage");
+            }
+        }
+        Set<String> reachable = new HashSet<>();
+        Deque<String> todo = new ArrayDeque<>(headIds);
+        while (!todo.isEmpty()) {
+            String id = todo.pop();
+            if (reachable.add(id)) {
+                FlowNode n = getNode(id);
+                if (n != null) {
+                    todo.addAll(n.getParentIds());
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Releases files this storage holds open, for example once its execution has completed or is being unloaded.
+     * Anything pending is {@linkplain #flush() flushed} first. The storage remains usable, reopening files as needed.
+     * The default implementation does nothing.
+     */
+    public void close() throws IOException {
+        // Only needs implementation if files are kept open between calls
+    }
+
     /** Have we written everything to disk that we need to, or is there something waiting to be written by invoking {@link #flush()}? */
     public boolean isPersistedFully() {
         return true;
     }
+
+    /**
+     * I/O statistics of this storage since it was created.
+     * @return null if this storage does not collect any, as by default
+     */
+    public @CheckForNull FlowNodeStorageStatistics getStatistics() {
+        return null;
+    }
 }
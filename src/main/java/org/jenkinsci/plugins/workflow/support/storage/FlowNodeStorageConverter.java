@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Converts the flow nodes of a completed execution between storage formats, in place.
+ *
+ * <p>{@link SimpleXStreamFlowNodeStorage} suits running builds, but leaves one file per node behind;
+ *  {@link #toBulk} folds those into a single {@link BulkFlowNodeStorage} store, which is far cheaper to retain.
+ *  {@link #toSimple} goes the other way, for example to inspect individual nodes while debugging.
+ *
+ * <p>Conversions must not run while the execution is running, and the caller is responsible for opening the directory
+ *  with the matching storage class afterwards. Each conversion writes the new format completely before deleting
+ *  the old one, so if it is interrupted it can simply be run again.
+ */
+public final class FlowNodeStorageConverter {
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeStorageConverter.class.getName());
+
+    /** Present while the bulk store of a directory whose nodes have all been written to node files is being deleted. */
+    static final String CONVERTED_MARKER = "flowNodeStore.converted";
+
+    private FlowNodeStorageConverter() {}
+
+    /**
+     * Converts per-node files to a bulk store in the same directory, then deletes the per-node files.
+     * @param exec the execution owning the nodes
+     * @param dir the storage directory
+     * @return the number of nodes converted
+     */
+    public static int toBulk(@NonNull FlowExecution exec, @NonNull File dir) throws IOException {
+        BulkFlowNodeStorage target = new BulkFlowNodeStorage(exec, dir);
+        if (target.getStoreFile().exists()) {
+            // An earlier conversion wrote the store but was interrupted while deleting the node files.
+            LOGGER.log(Level.FINE, "{0} already has a bulk store; deleting leftover node files", dir);
+            SimpleXStreamFlowNodeStorage.deleteNodeFiles(dir);
+            return 0;
+        }
+        SimpleXStreamFlowNodeStorage source = new SimpleXStreamFlowNodeStorage(exec, dir);
+        new NodeJournal(dir).recover(); // so that no node is missed if the build was interrupted while writing
+        List<String> ids = new ArrayList<>();
+        for (File f : SimpleXStreamFlowNodeStorage.listNodeFiles(dir)) {
+            ids.add(f.getName().substring(0, f.getName().length() - ".xml".length()));
+        }
+        source.preload(ids);
+        target.setAvoidAtomicWrite(false); // the store must be complete before the node files go
+        int count = copy(source, target, ids);
+        SimpleXStreamFlowNodeStorage.deleteNodeFiles(dir);
+        LOGGER.log(Level.FINE, "Converted {0} nodes in {1} to a bulk store", new Object[] {count, dir});
+        return count;
+    }
+
+    /**
+     * Converts a bulk store to per-node files in the same directory, then deletes the bulk store.
+     * @param exec the execution owning the nodes
+     * @param dir the storage directory
+     * @return the number of nodes converted
+     */
+    public static int toSimple(@NonNull FlowExecution exec, @NonNull File dir) throws IOException {
+        BulkFlowNodeStorage source = new BulkFlowNodeStorage(exec, dir);
+        File converted = new File(dir, CONVERTED_MARKER);
+        if (converted.exists()) {
+            // An earlier conversion wrote all node files but was interrupted while deleting the bulk store.
+            LOGGER.log(Level.FINE, "{0} was already converted to node files; deleting leftover bulk store", dir);
+            source.deleteFiles();
+            Files.delete(converted.toPath());
+            return 0;
+        }
+        if (!source.getStoreFile().exists() && !source.getDeltaFile().exists()) {
+            return 0;
+        }
+        SimpleXStreamFlowNodeStorage target = new SimpleXStreamFlowNodeStorage(exec, dir);
+        int count = copy(source, target, source.getNodeIds());
+        // Until the bulk store is gone, a rerun must not convert what is left of it over the node files.
+        Files.newOutputStream(converted.toPath()).close();
+        source.deleteFiles();
+        Files.delete(converted.toPath());
+        LOGGER.log(Level.FINE, "Converted {0} nodes in {1} to node files", new Object[] {count, dir});
+        return count;
+    }
+
+    /**
+     * Copies nodes, with their actions, from one storage to another, and flushes the target.
+     * Usable with any pair of formats, including ones added in future.
+     * @param ids the nodes to copy; IDs not found in the source are skipped
+     * @return the number of nodes copied
+     */
+    public static int copy(@NonNull FlowNodeStorage source, @NonNull FlowNodeStorage target, @NonNull Collection<String> ids) throws IOException {
+        int count = 0;
+        for (String id : ids) {
+            FlowNode n = source.getNode(id);
+            if (n == null) {
+                LOGGER.log(Level.WARNING, "Skipping flow node {0} which could not be found", id);
+                continue;
+            }
+            target.storeNode(n, true);
+            count++;
+        }
+        target.flush();
+        return count;
+    }
+}
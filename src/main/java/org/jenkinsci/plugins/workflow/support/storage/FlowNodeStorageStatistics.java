@@ -0,0 +1,362 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Counts the I/O done by a {@link FlowNodeStorage}: what was written and synced, how long loads and flushes took,
+ *  and how often reads were served from memory.
+ *
+ * <p>Each storage has its own instance (see {@link FlowNodeStorage#getStatistics}), which also adds to
+ *  the {@linkplain #getGlobal() controller-wide} one. The controller-wide statistics are registered over JMX as
+ *  {@value #OBJECT_NAME}, and also list the storages which have written the most, by directory, with their own statistics.
+ *  {@link Listener}s are told the statistics of an execution each time a flush writes something,
+ *  so that I/O can be attributed to the job it came from.
+ *
+ * <p>All methods are thread-safe; recording is cheap enough to leave on all the time.
+ */
+public final class FlowNodeStorageStatistics implements FlowNodeStorageStatisticsMXBean {
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeStorageStatistics.class.getName());
+
+    static final String OBJECT_NAME = "org.jenkinsci.plugins.workflow:type=FlowNodeStorage";
+
+    /** Upper bounds of the {@link #getLoadLatencyHistogram} buckets, in microseconds; the last bucket is unbounded. */
+    private static final long[] LOAD_LATENCY_BOUNDS_MICROS = {100, 1_000, 10_000, 100_000};
+
+    /** Number of storages listed by {@link #getBusiestStorages}. */
+    private static final int BUSIEST = 20;
+
+    private static final FlowNodeStorageStatistics GLOBAL = new FlowNodeStorageStatistics("(all)", null);
+
+    /** Statistics of storages still in use, for {@link #getBusiestStorages}. Guarded by itself. */
+    private static final Set<FlowNodeStorageStatistics> live = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final String name;
+    private final @CheckForNull FlowNodeStorageStatistics parent;
+
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder[] loadLatency = new LongAdder[LOAD_LATENCY_BOUNDS_MICROS.length + 1];
+    private final LongAdder fullLoads = new LongAdder();
+    private final LongAdder fullLoadNanos = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+
+    private FlowNodeStorageStatistics(String name, @CheckForNull FlowNodeStorageStatistics parent) {
+        this.name = name;
+        this.parent = parent;
+        for (int i = 0; i < loadLatency.length; i++) {
+            loadLatency[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Creates statistics for one storage, contributing to the {@linkplain #getGlobal() controller-wide} ones.
+     * @param name identifies the storage, typically by its directory
+     */
+    public static @NonNull FlowNodeStorageStatistics create(@NonNull String name) {
+        FlowNodeStorageStatistics s = new FlowNodeStorageStatistics(name, GLOBAL);
+        synchronized (live) {
+            live.add(s);
+        }
+        return s;
+    }
+
+    /** Statistics of all storages since the controller started. */
+    public static @NonNull FlowNodeStorageStatistics getGlobal() {
+        return GLOBAL;
+    }
+
+    public @NonNull String getName() {
+        return name;
+    }
+
+    /** Records that a file was written, or records appended to one. */
+    public void recordWrite(long bytes) {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.bytesWritten.add(bytes);
+            s.writes.increment();
+        }
+    }
+
+    /** Records that something was forced to disk. */
+    public void recordSync() {
+        recordSyncs(1);
+    }
+
+    public void recordSyncs(int count) {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.syncs.add(count);
+        }
+    }
+
+    /** Records a request for a node or its actions. */
+    public void recordRead() {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.reads.increment();
+        }
+    }
+
+    /** Records that a {@linkplain #recordRead read} could not be served from memory. */
+    public void recordMiss() {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.misses.increment();
+        }
+    }
+
+    /** Records the time taken to load one node from disk. */
+    public void recordLoad(long nanos) {
+        int bucket = 0;
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        while (bucket < LOAD_LATENCY_BOUNDS_MICROS.length && micros >= LOAD_LATENCY_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.loads.increment();
+            s.loadNanos.add(nanos);
+            s.loadLatency[bucket].increment();
+        }
+    }
+
+    /** Records the time taken to load all nodes of a storage at once. */
+    public void recordFullLoad(long nanos) {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.fullLoads.increment();
+            s.fullLoadNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Records the time taken by {@link FlowNodeStorage#flush}, and notifies {@link Listener}s.
+     * Only called for flushes which wrote something, so that idle flushes neither count nor cost a listener lookup.
+     * @param exec the execution owning the storage
+     */
+    public void recordFlush(@NonNull FlowExecution exec, long nanos) {
+        for (FlowNodeStorageStatistics s = this; s != null; s = s.parent) {
+            s.flushes.increment();
+            s.flushNanos.add(nanos);
+        }
+        if (Jenkins.getInstanceOrNull() == null) {
+            return; // for example in a benchmark
+        }
+        for (Listener l : ExtensionList.lookup(Listener.class)) {
+            try {
+                l.onFlush(exec, this);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, null, x);
+            }
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long r = reads.sum();
+        return r == 0 ? Double.NaN : Math.max(0, r - misses.sum()) / (double) r;
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(loadNanos.sum());
+    }
+
+    @Override
+    public long[] getLoadLatencyHistogram() {
+        long[] result = new long[loadLatency.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = loadLatency[i].sum();
+        }
+        return result;
+    }
+
+    @Override
+    public long[] getLoadLatencyBoundsMicros() {
+        return LOAD_LATENCY_BOUNDS_MICROS.clone();
+    }
+
+    @Override
+    public long getFullLoads() {
+        return fullLoads.sum();
+    }
+
+    @Override
+    public long getFullLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fullLoadNanos.sum());
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    @Override
+    public long getFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushNanos.sum());
+    }
+
+    /** For the controller-wide statistics, bytes written by the storages in use which have written the most; otherwise empty. */
+    @Override
+    public Map<String, Long> getBusiestStorages() {
+        if (this != GLOBAL) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (FlowNodeStorageStatistics s : busiest()) {
+            result.merge(s.name, s.getBytesWritten(), Long::sum);
+        }
+        return result;
+    }
+
+    /** For the controller-wide statistics, the counters of the storages in use which have written the most; otherwise empty. */
+    @Override
+    public Map<String, Map<String, Long>> getBusiestStorageStatistics() {
+        if (this != GLOBAL) {
+            return Collections.emptyMap();
+        }
+        Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+        for (FlowNodeStorageStatistics s : busiest()) {
+            // A directory reopened while the old storage is still referenced reports only its busier instance.
+            result.putIfAbsent(s.name, s.counters());
+        }
+        return result;
+    }
+
+    private static List<FlowNodeStorageStatistics> busiest() {
+        List<FlowNodeStorageStatistics> all;
+        synchronized (live) {
+            all = new ArrayList<>(live);
+        }
+        all.sort(Comparator.comparingLong(FlowNodeStorageStatistics::getBytesWritten).reversed());
+        return all.subList(0, Math.min(BUSIEST, all.size()));
+    }
+
+    private Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("bytesWritten", getBytesWritten());
+        counters.put("writes", getWrites());
+        counters.put("syncs", getSyncs());
+        counters.put("reads", getReads());
+        counters.put("misses", getMisses());
+        counters.put("loads", getLoads());
+        counters.put("loadMillis", getLoadMillis());
+        counters.put("fullLoads", getFullLoads());
+        counters.put("fullLoadMillis", getFullLoadMillis());
+        counters.put("flushes", getFlushes());
+        counters.put("flushMillis", getFlushMillis());
+        return counters;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[bytesWritten=" + getBytesWritten() + ", writes=" + getWrites() + ", syncs=" + getSyncs()
+                + ", reads=" + getReads() + ", misses=" + getMisses() + ", loads=" + getLoads() + ", flushes=" + getFlushes() + "]";
+    }
+
+    @Restricted(NoExternalUse.class)
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(on)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, on);
+            }
+        } catch (JMException x) {
+            LOGGER.log(Level.WARNING, "Failed to register " + OBJECT_NAME, x);
+        }
+    }
+
+    /**
+     * Receives the statistics of each execution as its storage is flushed,
+     *  for example to publish them as metrics attributed to {@link FlowExecution#getOwner}.
+     * Statistics are cumulative over the life of the storage, which normally ends when the build completes or the controller restarts.
+     */
+    public abstract static class Listener implements ExtensionPoint {
+        /**
+         * Called after a storage has been flushed. Should return quickly, as it runs on the flushing thread.
+         * @param exec the execution owning the storage
+         * @param statistics the statistics of that storage
+         */
+        public abstract void onFlush(@NonNull FlowExecution exec, @NonNull FlowNodeStorageStatistics statistics);
+    }
+}
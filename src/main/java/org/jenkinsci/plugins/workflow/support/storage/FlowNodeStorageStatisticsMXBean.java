@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link FlowNodeStorageStatistics}.
+ */
+public interface FlowNodeStorageStatisticsMXBean {
+
+    /** Bytes written to node files, stores, logs and journals. */
+    long getBytesWritten();
+
+    /** Files written, or batches of records appended to one. */
+    long getWrites();
+
+    /** Calls forcing data to disk. */
+    long getSyncs();
+
+    /** Requests for nodes or their actions. */
+    long getReads();
+
+    /** Reads which had to go to disk. */
+    long getMisses();
+
+    /** Fraction of reads served from memory, or NaN if there were none. */
+    double getHitRate();
+
+    /** Single nodes loaded from disk. */
+    long getLoads();
+
+    long getLoadMillis();
+
+    /** Number of single node loads in each latency bucket; see {@link #getLoadLatencyBoundsMicros}. */
+    long[] getLoadLatencyHistogram();
+
+    /** Upper bounds of all but the last bucket of {@link #getLoadLatencyHistogram}. */
+    long[] getLoadLatencyBoundsMicros();
+
+    /** Loads of all nodes of a storage at once. */
+    long getFullLoads();
+
+    long getFullLoadMillis();
+
+    long getFlushes();
+
+    long getFlushMillis();
+
+    /** Bytes written by the storages in use which have written the most, by name. */
+    Map<String, Long> getBusiestStorages();
+
+    /** Counters such as {@code bytesWritten}, {@code syncs} and {@code flushMillis} of the same storages, by name. */
+    Map<String, Map<String, Long>> getBusiestStorageStatistics();
+}
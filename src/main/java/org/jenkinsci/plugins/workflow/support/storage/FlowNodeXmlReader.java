@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import com.thoughtworks.xstream.core.util.HierarchicalStreams;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.path.PathTracker;
+import com.thoughtworks.xstream.io.path.PathTrackingReader;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Action;
+import hudson.util.XStream2;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Reads the {@code Tag} layout of {@link SimpleXStreamFlowNodeStorage} node files with a StAX pull parser, in one pass.
+ *
+ * <p>The node's ID and parents, and the fields of common node types, are read straight from the parser,
+ *  and only the body of each action is handed to XStream. This skips the reflective construction of the {@code Tag} wrapper,
+ *  of the node and of the intermediate action list, and lets the actions go straight into the list the storage keeps.
+ *  Node types with fields which are not plain values are unmarshalled by XStream, still within the same pass.
+ *  An action which cannot be read is skipped, as XStream would do when reading the whole file.
+ *  Only a record in which the node and its actions share objects, which XStream writes as references
+ *  that it alone can resolve, is unmarshalled by XStream as a whole instead.
+ */
+final class FlowNodeXmlReader {
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeXmlReader.class.getName());
+
+    /** Root element name, as aliased in {@link SimpleXStreamFlowNodeStorage#XSTREAM}. */
+    private static final String TAG = "Tag";
+
+    /** Attribute marking an object written earlier in the same record. */
+    private static final byte[] REFERENCE = "reference=\"".getBytes(StandardCharsets.US_ASCII);
+
+    private final XStream2 xstream;
+    /** Uses the same name coder as the default XStream driver, so element names decode the same way. */
+    private final StaxDriver driver = new StaxDriver();
+
+    /** Whether this reader can set all fields of a node type itself: those of {@link FlowNode}, and plain values. */
+    private final ClassValue<Boolean> readable = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            BinaryFlowNodeCodec.Layout layout = BinaryFlowNodeCodec.LAYOUTS.get(type);
+            if (!layout.encodable) {
+                return false;
+            }
+            for (Field f : layout.fields) {
+                if (!f.getType().isAssignableFrom(ArrayList.class)
+                        && !(xstream.getConverterLookup().lookupConverterForType(f.getType()) instanceof SingleValueConverter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    FlowNodeXmlReader(@NonNull XStream2 xstream) {
+        this.xstream = xstream;
+    }
+
+    /**
+     * @param xml the content of a node file, already decompressed
+     * @param source where it was read from, for messages
+     * @return the node and its actions
+     * @throws IOException if it does not hold a node
+     */
+    @NonNull
+    FlowNodeCodec.Decoded read(@NonNull byte[] xml, @NonNull Object source) throws IOException {
+        if (contains(xml, REFERENCE)) {
+            return readWhole(xml, source);
+        }
+        try {
+            PathTracker path = new PathTracker();
+            HierarchicalStreamReader reader = new PathTrackingReader(driver.createReader(new ByteArrayInputStream(xml)), path);
+            try {
+                if (!TAG.equals(reader.getNodeName())) {
+                    throw new IOException("Unexpected <" + reader.getNodeName() + "> in " + source);
+                }
+                FlowNode node = null;
+                List<Action> actions = new ArrayList<>();
+                while (reader.hasMoreChildren()) {
+                    reader.moveDown();
+                    switch (reader.getNodeName()) {
+                        case "node":
+                            node = readNode(reader);
+                            break;
+                        case "actions":
+                            readActions(reader, path, actions, source);
+                            break;
+                        default:
+                            LOGGER.log(Level.FINE, "Ignoring <{0}> in {1}", new Object[] {reader.getNodeName(), source});
+                    }
+                    reader.moveUp();
+                }
+                if (node == null) {
+                    throw new IOException("failed to load flow node from " + source);
+                }
+                return new FlowNodeCodec.Decoded(node, actions);
+            } finally {
+                reader.close();
+            }
+        } catch (XStreamException | IllegalArgumentException | IllegalAccessException x) {
+            throw new IOException("Unable to read " + source, x);
+        }
+    }
+
+    private FlowNode readNode(HierarchicalStreamReader reader) throws IOException, IllegalAccessException {
+        Class<?> type = HierarchicalStreams.readClassType(reader, xstream.getMapper());
+        if (!FlowNode.class.isAssignableFrom(type)) {
+            throw new IOException(type.getName() + " is not a flow node");
+        }
+        if (!readable.get(type)) {
+            return (FlowNode) xstream.unmarshal(reader);
+        }
+        BinaryFlowNodeCodec.Layout layout = BinaryFlowNodeCodec.LAYOUTS.get(type);
+        FlowNode node = (FlowNode) xstream.getReflectionProvider().newInstance(type);
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            String name = reader.getNodeName();
+            switch (name) {
+                case "id":
+                    BinaryFlowNodeCodec.FlowNode$id.set(node, reader.getValue());
+                    break;
+                case "parentIds":
+                // Written by old versions with each parent as an element holding just its ID; see SimpleXStreamFlowNodeStorage.NODE_CONVERTER.
+                case "parents":
+                    BinaryFlowNodeCodec.FlowNode$parentIds.set(node, readValues(reader));
+                    break;
+                default:
+                    Field f = layout.field(xstream.getMapper().realMember(type, name));
+                    if (f == null) {
+                        LOGGER.log(Level.FINE, "Ignoring field {0} of {1}", new Object[] {name, type.getName()});
+                    } else if (f.getType().isAssignableFrom(ArrayList.class)) {
+                        f.set(node, readValues(reader));
+                    } else {
+                        f.set(node, ((SingleValueConverter) xstream.getConverterLookup().lookupConverterForType(f.getType())).fromString(reader.getValue()));
+                    }
+            }
+            reader.moveUp();
+        }
+        return node;
+    }
+
+    private static List<String> readValues(HierarchicalStreamReader reader) {
+        List<String> values = new ArrayList<>();
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            values.add(reader.getValue());
+            reader.moveUp();
+        }
+        return values;
+    }
+
+    private void readActions(HierarchicalStreamReader reader, PathTracker path, List<Action> actions, Object source) {
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            int depth = path.depth();
+            try {
+                Object a = xstream.unmarshal(reader);
+                if (a instanceof Action) {
+                    actions.add((Action) a);
+                }
+            } catch (XStreamException | LinkageError x) {
+                LOGGER.log(Level.WARNING, "Skipping action which could not be loaded from " + source, x);
+                while (path.depth() > depth) {
+                    reader.moveUp();
+                }
+            }
+            reader.moveUp();
+        }
+    }
+
+    /** Unmarshals a record as one object graph, so that references between its parts are resolved. */
+    private FlowNodeCodec.Decoded readWhole(byte[] xml, Object source) throws IOException {
+        Object o;
+        try {
+            o = xstream.fromXML(new ByteArrayInputStream(xml));
+        } catch (RuntimeException x) {
+            throw new IOException("Unable to read " + source, x);
+        }
+        if (!(o instanceof SimpleXStreamFlowNodeStorage.Tag) || ((SimpleXStreamFlowNodeStorage.Tag) o).node == null) {
+            throw new IOException("failed to load flow node from " + source);
+        }
+        SimpleXStreamFlowNodeStorage.Tag t = (SimpleXStreamFlowNodeStorage.Tag) o;
+        return new FlowNodeCodec.Decoded(t.node, t.actions());
+    }
+
+    private static boolean contains(byte[] data, byte[] pattern) {
+        outer: for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,723 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Action;
+import hudson.util.ClassLoaderSanityThreadFactory;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * {@link FlowNodeStorage} that appends node records to a single segment file.
+ *
+ * <p>Each {@link #storeNode(FlowNode)} or {@link #saveActions(FlowNode, List)} appends one record holding the node and
+ *  its actions, so the cost of a write is proportional to the record rather than to the whole graph
+ *  (as with {@link BulkFlowNodeStorage}), and the build directory holds a single file rather than one per node
+ *  (as with {@link SimpleXStreamFlowNodeStorage}).
+ *  An in-memory index maps each node ID to its latest record; older records for the same node are garbage,
+ *  and are dropped by a background compaction once they make up most of the segment.
+ *
+ * <p>The segment starts with a header (magic number and version), followed by records of the form:
+ * <pre>
+ *  int length, int CRC-32 of the payload, payload = (byte codec, UTF node ID, encoded node)
+ * </pre>
+ *  where the codec is a {@link FlowNodeCodec}: by default {@link BinaryFlowNodeCodec}, or {@link XStreamFlowNodeCodec}
+ *  if {@link #BINARY_CODEC} is turned off. Records written with either codec can always be read back.
+ *  A record which was only partially written (for example because the controller crashed) fails its checksum
+ *  and is truncated when the segment is next opened, leaving the previous record for that node in effect.
+ *
+ * <p>Unless {@link #isAvoidAtomicWrite()} is set, every append is forced to disk before returning.
+ *  The segment is opened on the first read or write, and closed again once it has not been used for {@link #IDLE_CLOSE_MILLIS},
+ *  so that storages of builds which were only browsed do not each hold a file descriptor; the index stays in memory meanwhile.
+ */
+public class LogStructuredFlowNodeStorage extends FlowNodeStorage {
+    private static final Logger LOGGER = Logger.getLogger(LogStructuredFlowNodeStorage.class.getName());
+
+    /** Runs compactions, so they do not stall the thread doing the flush. */
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new NamingThreadFactory(new ClassLoaderSanityThreadFactory(new DaemonThreadFactory()), "LogStructuredFlowNodeStorage.compactor"));
+
+    private final File dir;
+    private final FlowExecution exec;
+
+    /** Opened on demand by {@link #openChannel}, and closed by {@link #closeIfIdle}. */
+    private transient FileChannel channel;
+
+    /** {@link System#nanoTime} of the last use of {@link #channel}. */
+    private transient long lastUsed;
+
+    /** Set while {@link #closeIfIdle} is scheduled. */
+    private transient ScheduledFuture<?> idleCheck;
+
+    /** Set while {@link #compact()} copies from {@link #channel}, which must then not be closed for being idle. */
+    private transient boolean compacting;
+
+    /** Location of the latest record for each node ID. */
+    private transient Map<String, Entry> index;
+
+    /** Where the next record will be written. */
+    private transient long end;
+
+    /** Sum of the lengths of the records referenced by {@link #index}. */
+    private transient long liveBytes;
+
+    private transient boolean compactionScheduled;
+
+    /** Whether records were appended since the segment was last forced to disk. */
+    private transient boolean unsynced;
+
+    /** Held for the whole of {@link #compact()}, so that only one compaction writes the temporary file at a time. */
+    private final transient Object compactionLock = new Object();
+
+    private transient FlowNodeCodec codec = BINARY_CODEC ? BinaryFlowNodeCodec.INSTANCE : XStreamFlowNodeCodec.INSTANCE;
+
+    private final transient FlowNodeStorageStatistics statistics;
+
+    /** Nodes with the actions last written or read for them, by ID. */
+    private final LoadingCache<String, FlowNodeCodec.Decoded> nodeCache = Caffeine.newBuilder()
+            .softValues()
+            .build(key -> {
+                statistics.recordMiss();
+                return LogStructuredFlowNodeStorage.this.load(key);
+            });
+
+    /** Holds nodes that don't have to autopersist upon writing. */
+    private transient HashMap<String, FlowNode> deferredWrite = null;
+
+    private transient HashSet<String> delayAutopersistIds = null;
+
+    public LogStructuredFlowNodeStorage(FlowExecution exec, File dir) {
+        this.exec = exec;
+        this.dir = dir;
+        this.statistics = FlowNodeStorageStatistics.create(dir.getPath());
+    }
+
+    File getSegmentFile() {
+        return new File(dir, "flowNodeStore.log");
+    }
+
+    /** Selects the codec used for records written from now on. */
+    synchronized void setCodec(@NonNull FlowNodeCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    @CheckForNull
+    public synchronized FlowNode getNode(@NonNull String id) throws IOException {
+        statistics.recordRead();
+        if (deferredWrite != null) {
+            FlowNode maybeOutput = deferredWrite.get(id);
+            if (maybeOutput != null) {
+                return maybeOutput;
+            }
+        }
+        if (!getOrOpenIndex().containsKey(id)) {
+            return null;
+        }
+        return getCached(id).node;
+    }
+
+    private FlowNodeCodec.Decoded getCached(String id) throws IOException {
+        try {
+            return nodeCache.get(id);
+        } catch (CompletionException x) {
+            throw new IOException(x.getCause());
+        }
+    }
+
+    @Override
+    public synchronized void storeNode(@NonNull FlowNode n, boolean delayWritingActions) throws IOException {
+        if (delayWritingActions) {
+            if (deferredWrite == null) {
+                deferredWrite = new HashMap<>();
+            }
+            deferredWrite.put(n.getId(), n);
+            if (delayAutopersistIds == null) {
+                delayAutopersistIds = new HashSet<>(2);
+            }
+            delayAutopersistIds.add(n.getId());
+        } else {
+            flushNode(n);
+        }
+    }
+
+    @Override
+    public void storeNode(@NonNull FlowNode n) throws IOException {
+        storeNode(n, false);
+    }
+
+    /** Appends one record per node but forces the segment only once for the whole batch. */
+    @Override
+    public synchronized void storeNodes(@NonNull Collection<FlowNode> nodes, boolean delayWritingActions) throws IOException {
+        if (delayWritingActions) {
+            super.storeNodes(nodes, true);
+            return;
+        }
+        for (FlowNode n : nodes) {
+            append(n, n.getActions());
+            if (deferredWrite != null) {
+                deferredWrite.remove(n.getId());
+            }
+        }
+        if (!isAvoidAtomicWrite() && channel != null) {
+            force();
+        }
+    }
+
+    @Override
+    public synchronized void autopersist(@NonNull FlowNode n) throws IOException {
+        if (deferredWrite != null && deferredWrite.containsKey(n.getId())) {
+            flushNode(n);
+        }
+        if (delayAutopersistIds != null) {
+            delayAutopersistIds.remove(n.getId());
+        }
+    }
+
+    @Override
+    public synchronized void flushNode(@NonNull FlowNode n) throws IOException {
+        writeNode(n, n.getActions());
+        if (deferredWrite != null) {
+            deferredWrite.remove(n.getId());
+        }
+    }
+
+    /** Writes any nodes that had writing deferred, and forces the segment to disk if anything was appended since it last was. */
+    @Override
+    public synchronized void flush() throws IOException {
+        long start = System.nanoTime();
+        if (deferredWrite != null && !deferredWrite.isEmpty()) {
+            for (FlowNode f : deferredWrite.values()) {
+                append(f, f.getActions());
+            }
+            deferredWrite.clear();
+        }
+        if (channel != null && unsynced) {
+            force();
+            statistics.recordFlush(exec, System.nanoTime() - start);
+        }
+        maybeScheduleCompaction();
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        statistics.recordSync();
+        unsynced = false;
+    }
+
+    /** Flushes, then closes the segment; it is reopened, and the index rebuilt, if this storage is used again. */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+                index = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment, reopening it if it was closed for being idle,
+     *  and makes sure it gets closed again once it has not been used for {@link #IDLE_CLOSE_MILLIS}.
+     * The index must have been read by {@link #getOrOpenIndex} first.
+     */
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(getSegmentFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        lastUsed = System.nanoTime();
+        if (idleCheck == null && IDLE_CLOSE_MILLIS > 0) {
+            idleCheck = Timer.get().schedule(this::closeIfIdle, IDLE_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return channel;
+    }
+
+    /** Closes the segment if it has not been used for {@link #IDLE_CLOSE_MILLIS}, otherwise checks again once it could have been. */
+    private synchronized void closeIfIdle() {
+        idleCheck = null;
+        if (channel == null) {
+            return;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(IDLE_CLOSE_MILLIS) - (System.nanoTime() - lastUsed);
+        if (remaining > 0 || compacting) {
+            idleCheck = Timer.get().schedule(this::closeIfIdle, Math.max(remaining, TimeUnit.MILLISECONDS.toNanos(IDLE_CLOSE_MILLIS)), TimeUnit.NANOSECONDS);
+            return;
+        }
+        try {
+            if (unsynced) {
+                force();
+            }
+            channel.close();
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to close idle " + getSegmentFile(), x);
+        } finally {
+            channel = null;
+        }
+    }
+
+    /** Whether the segment is currently open, for tests. */
+    synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    @Override
+    public @NonNull FlowNodeStorageStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public synchronized List<Action> loadActions(@NonNull FlowNode node) throws IOException {
+        statistics.recordRead();
+        if (!getOrOpenIndex().containsKey(node.getId())) {
+            return new ArrayList<>(); // not yet saved
+        }
+        return new ArrayList<>(getCached(node.getId()).actions);
+    }
+
+    @Override
+    public synchronized void saveActions(@NonNull FlowNode node, @NonNull List<Action> actions) throws IOException {
+        if (delayAutopersistIds != null && delayAutopersistIds.contains(node.getId())) {
+            deferredWrite.put(node.getId(), node);
+        } else {
+            writeNode(node, actions);
+        }
+    }
+
+    @Override
+    public synchronized boolean isPersistedFully() {
+        return deferredWrite == null || deferredWrite.isEmpty();
+    }
+
+    private void writeNode(FlowNode node, List<Action> actions) throws IOException {
+        append(node, actions);
+        if (!isAvoidAtomicWrite()) {
+            force();
+        }
+    }
+
+    private void append(FlowNode node, List<Action> actions) throws IOException {
+        Map<String, Entry> idx = getOrOpenIndex();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeByte(codec.getId());
+        dos.writeUTF(node.getId());
+        codec.write(node, actions, dos);
+        dos.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        long offset = end;
+        writeFully(openChannel(), record, offset);
+        unsynced = true;
+        statistics.recordWrite(record.limit());
+        end += record.limit();
+        Entry old = idx.put(node.getId(), new Entry(offset, record.limit()));
+        if (old != null) {
+            liveBytes -= old.length;
+        }
+        liveBytes += record.limit();
+        nodeCache.put(node.getId(), new FlowNodeCodec.Decoded(node, new ArrayList<>(actions)));
+    }
+
+    private FlowNodeCodec.Decoded load(String id) throws IOException {
+        long start = System.nanoTime();
+        Entry e = getOrOpenIndex().get(id);
+        if (e == null) {
+            throw new IOException("No record for flow node " + id + " in " + getSegmentFile());
+        }
+        ByteBuffer record = ByteBuffer.allocate(e.length);
+        readFully(openChannel(), record, e.offset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_OVERHEAD, e.length - RECORD_OVERHEAD));
+        FlowNodeCodec.Decoded v;
+        try {
+            byte codecId = in.readByte();
+            in.readUTF(); // id
+            v = FlowNodeCodec.forId(codecId).read(in);
+        } catch (IOException | RuntimeException x) {
+            throw new IOException("failed to load flow node " + id + " from " + getSegmentFile() + "@" + e.offset, x);
+        }
+        try {
+            FlowNode$exec.set(v.node, exec);
+            FlowNode_setActions.invoke(v.node, v.actions);
+        } catch (IllegalAccessException x) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to set owner").initCause(x);
+        } catch (InvocationTargetException x) {
+            throw new IOException(x);
+        }
+        for (FlowNodeAction a : Util.filter(v.actions, FlowNodeAction.class)) {
+            a.onLoad(v.node);
+        }
+        statistics.recordLoad(System.nanoTime() - start);
+        return v;
+    }
+
+    /** Opens the segment, creating it if needed, and rebuilds the index by scanning its records. */
+    private Map<String, Entry> getOrOpenIndex() throws IOException {
+        if (index == null) {
+            if (!dir.exists()) {
+                IOUtils.mkdirs(dir);
+            }
+            File file = getSegmentFile();
+            FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                Map<String, Entry> idx = new HashMap<>();
+                long live = 0;
+                long size = ch.size();
+                if (size < HEADER_SIZE) {
+                    if (size > 0) {
+                        // The header is written before any record, so a torn one can only come from a crash right after creation.
+                        LOGGER.log(Level.WARNING, "Discarding incomplete segment header in {0}", file);
+                        ch.truncate(0);
+                    }
+                    writeFully(ch, HEADER_BUFFER.duplicate(), 0);
+                    size = HEADER_SIZE;
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    readFully(ch, header, 0);
+                    header.flip();
+                    if (header.getLong() != MAGIC) {
+                        throw new IOException("Invalid segment header in " + file);
+                    }
+                    short v = header.getShort();
+                    if (v != VERSION) {
+                        throw new IOException("Unexpected segment version " + v + " in " + file);
+                    }
+                }
+                long pos = HEADER_SIZE;
+                ByteBuffer framing = ByteBuffer.allocate(RECORD_OVERHEAD);
+                while (pos < size) {
+                    String id = null;
+                    int length = -1;
+                    if (size - pos >= RECORD_OVERHEAD) {
+                        framing.clear();
+                        readFully(ch, framing, pos);
+                        framing.flip();
+                        length = framing.getInt();
+                        int checksum = framing.getInt();
+                        if (length > 0 && length <= size - pos - RECORD_OVERHEAD) {
+                            ByteBuffer payload = ByteBuffer.allocate(length);
+                            readFully(ch, payload, pos + RECORD_OVERHEAD);
+                            CRC32 crc = new CRC32();
+                            crc.update(payload.array());
+                            if ((int) crc.getValue() == checksum) {
+                                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                                in.readByte(); // codec
+                                id = in.readUTF();
+                            }
+                        }
+                    }
+                    if (id == null) {
+                        LOGGER.log(Level.WARNING, "Truncating incomplete record at {0}@{1}", new Object[] {file, pos});
+                        ch.truncate(pos);
+                        size = pos;
+                        break;
+                    }
+                    Entry old = idx.put(id, new Entry(pos, RECORD_OVERHEAD + length));
+                    if (old != null) {
+                        live -= old.length;
+                    }
+                    live += RECORD_OVERHEAD + length;
+                    pos += RECORD_OVERHEAD + length;
+                }
+                channel = ch;
+                end = size;
+                liveBytes = live;
+                index = idx;
+                openChannel(); // so that it is closed if left idle
+            } catch (IOException | RuntimeException x) {
+                ch.close();
+                throw x;
+            }
+        }
+        return index;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (index == null || compactionScheduled) {
+            return;
+        }
+        long garbage = end - HEADER_SIZE - liveBytes;
+        if (end >= COMPACTION_MIN_SIZE && garbage > liveBytes) {
+            compactionScheduled = true;
+            compactor.submit(() -> {
+                try {
+                    compact();
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "Failed to compact " + getSegmentFile(), x);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rewrites the segment so that it only holds the latest record for each node.
+     * Normally run in the background once superseded records outweigh live ones.
+     * Live records are copied without holding the lock on this storage, so writes may continue meanwhile;
+     *  records appended during the copy are carried over when the new segment is swapped in.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            FileChannel source;
+            List<Map.Entry<String, Entry>> live;
+            long copiedEnd;
+            synchronized (this) {
+                compactionScheduled = false;
+                live = new ArrayList<>(getOrOpenIndex().entrySet());
+                source = openChannel();
+                copiedEnd = end;
+                compacting = true;
+            }
+            try {
+                compact(source, live, copiedEnd);
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+
+    private void compact(FileChannel source, List<Map.Entry<String, Entry>> live, long copiedEnd) throws IOException {
+        File file = getSegmentFile();
+        File tmp = new File(dir, file.getName() + ".compact");
+        Map<String, Entry> compacted = new HashMap<>(live.size());
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, HEADER_BUFFER.duplicate(), 0);
+            long pos = HEADER_SIZE;
+            // Keep records in their original order, so that the segment remains roughly sorted by node creation.
+            live.sort((e1, e2) -> Long.compare(e1.getValue().offset, e2.getValue().offset));
+            try {
+                for (Map.Entry<String, Entry> e : live) {
+                    Entry old = e.getValue();
+                    transferFully(source, old.offset, old.length, out, pos);
+                    compacted.put(e.getKey(), new Entry(pos, old.length));
+                    pos += old.length;
+                }
+            } catch (ClosedChannelException x) {
+                if (!isClosedSince(source)) {
+                    throw x;
+                }
+            }
+            synchronized (this) {
+                if (isClosedSince(source)) {
+                    LOGGER.log(Level.FINE, "Abandoning compaction of {0}, which was closed meanwhile", file);
+                    out.close();
+                    Files.deleteIfExists(tmp.toPath());
+                    return;
+                }
+                // Records are only ever appended, so everything written since the copy started lies after copiedEnd.
+                long appendedStart = pos;
+                transferFully(source, copiedEnd, end - copiedEnd, out, appendedStart);
+                pos += end - copiedEnd;
+                out.force(true);
+                out.close();
+                Map<String, Entry> idx = new HashMap<>(index.size());
+                long liveLength = 0;
+                for (Map.Entry<String, Entry> e : index.entrySet()) {
+                    Entry current = e.getValue();
+                    Entry moved = current.offset >= copiedEnd
+                            ? new Entry(appendedStart + current.offset - copiedEnd, current.length)
+                            : compacted.get(e.getKey());
+                    idx.put(e.getKey(), moved);
+                    liveLength += moved.length;
+                }
+                statistics.recordWrite(pos);
+                statistics.recordSync();
+                long before = end;
+                channel.close();
+                channel = null;
+                index = null;
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                index = idx;
+                openChannel();
+                end = pos;
+                liveBytes = liveLength;
+                LOGGER.log(Level.FINE, "Compacted {0} from {1} to {2} bytes", new Object[] {file, before, pos});
+            }
+        }
+    }
+
+    /**
+     * Forgets nodes not reachable from the heads, then {@linkplain #compact() compacts} the segment without their records.
+     * Does not hold the lock on this storage while compacting, like background compactions.
+     */
+    @Override
+    public int compact(@NonNull Collection<String> headIds) throws IOException {
+        int dropped = 0;
+        synchronized (this) {
+            flush();
+            Set<String> reachable = reachableFrom(headIds);
+            for (Iterator<Map.Entry<String, Entry>> it = getOrOpenIndex().entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Entry> e = it.next();
+                if (!reachable.contains(e.getKey())) {
+                    it.remove();
+                    liveBytes -= e.getValue().length;
+                    nodeCache.invalidate(e.getKey());
+                    dropped++;
+                }
+            }
+        }
+        compact();
+        return dropped;
+    }
+
+    /** Whether {@link #close()} was called since the segment was opened as {@code source}. */
+    private synchronized boolean isClosedSince(FileChannel source) {
+        return channel != source;
+    }
+
+    private static void transferFully(FileChannel from, long position, long count, FileChannel to, long toPosition) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            transferred += from.transferTo(position + transferred, count - transferred, to.position(toPosition + transferred));
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = ch.read(buf, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /** Location of a record in the segment. */
+    private static final class Entry {
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void loadXstream() {
+        // Ensure that the XStream instance is loaded by a controlled thread to avoid referencing a Pipeline class loader.
+        SimpleXStreamFlowNodeStorage.XSTREAM.getClass();
+    }
+
+    /** Whether to write records with {@link BinaryFlowNodeCodec} rather than {@link XStreamFlowNodeCodec}. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean BINARY_CODEC = SystemProperties.getBoolean(LogStructuredFlowNodeStorage.class.getName() + ".BINARY_CODEC", true);
+
+    /** How long the segment may go unused before it is closed, to be reopened on the next read or write; zero to keep it open. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static long IDLE_CLOSE_MILLIS = SystemProperties.getLong(LogStructuredFlowNodeStorage.class.getName() + ".IDLE_CLOSE_MILLIS", 60_000L);
+
+    /*constant*/ static final long MAGIC = 0x57464E6F64654C6FL; // "WFNodeLo"
+    /*constant*/ static final short VERSION = 1;
+    private static final int HEADER_SIZE = 10; // sizeof(long) + sizeof(short)
+    private static final int RECORD_OVERHEAD = 8; // length + checksum
+    /** Segments smaller than this are never compacted. */
+    private static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+    /** Used to reduce allocation. Always call {@link ByteBuffer#duplicate} rather than using this directly. */
+    private static final ByteBuffer HEADER_BUFFER = ByteBuffer.allocate(HEADER_SIZE)
+            .putLong(MAGIC)
+            .putShort(VERSION)
+            .flip()
+            .asReadOnlyBuffer();
+
+    private static final Field FlowNode$exec;
+    private static final Method FlowNode_setActions;
+
+    static {
+        try {
+            // Ugly, but we do not want public getters and setters for internal state on FlowNodes.
+            FlowNode$exec = FlowNode.class.getDeclaredField("exec");
+            FlowNode$exec.setAccessible(true);
+            FlowNode_setActions = FlowNode.class.getDeclaredMethod("setActions", List.class);
+            FlowNode_setActions.setAccessible(true);
+        } catch (NoSuchFieldException|NoSuchMethodException e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Redo journal letting {@link SimpleXStreamFlowNodeStorage} write a batch of node files with a single sync.
+ *
+ * <p>The contents of a batch are appended to the journal, which is forced once; only then are the node files overwritten
+ *  in place, without syncing each of them. Should the controller crash before those writes reach the disk,
+ *  {@link #recover} rewrites the node files from the journal when the storage is next used.
+ *  Once the journal grows past {@link #CHECKPOINT_SIZE}, the node files written since the last checkpoint are synced
+ *  and the journal is emptied.
+ *
+ * <p>Records are of the form {@code int length, int CRC-32 of the payload, payload = (UTF file path, file contents)};
+ *  a record which fails its checksum, and anything after it, is ignored, as it can only be the tail of an interrupted append.
+ */
+final class NodeJournal {
+    private static final Logger LOGGER = Logger.getLogger(NodeJournal.class.getName());
+
+    static final String FILE_NAME = "nodes.journal";
+
+    private static final int RECORD_OVERHEAD = 8; // length + checksum
+    static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    private final File dir;
+    private final File file;
+
+    /** Set once records left by a previous run have been replayed; nothing may read or write node files before that. */
+    private volatile boolean recovered;
+
+    /** Current length of {@link #file}. */
+    private long size;
+
+    /** Node files written since the last checkpoint, which must be synced before the journal can be emptied. */
+    private final Set<File> unsynced = new LinkedHashSet<>();
+
+    NodeJournal(File dir) {
+        this.dir = dir;
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /** Whether there are records a crash would need replayed. */
+    synchronized boolean isEmpty() throws IOException {
+        recover();
+        return size == 0;
+    }
+
+    /**
+     * Appends the given node file contents, keyed by the file they belong in, and forces them to disk.
+     * @return the number of bytes appended
+     */
+    synchronized long append(Map<File, byte[]> batch) throws IOException {
+        recover();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        CRC32 crc = new CRC32();
+        for (Map.Entry<File, byte[]> e : batch.entrySet()) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream p = new DataOutputStream(payload);
+            p.writeUTF(dir.toPath().relativize(e.getKey().toPath()).toString());
+            p.write(e.getValue());
+            byte[] bytes = payload.toByteArray();
+            crc.reset();
+            crc.update(bytes);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(records.toByteArray());
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long position = size;
+            while (buf.hasRemaining()) {
+                position += ch.write(buf, position);
+            }
+            ch.force(false);
+            long appended = position - size;
+            size = position;
+            return appended;
+        }
+    }
+
+    /** Records that a node file covered by the journal has been written, but not synced. */
+    synchronized void written(File nodeFile) {
+        unsynced.add(nodeFile);
+    }
+
+    /**
+     * Empties the journal if it has grown past {@link #CHECKPOINT_SIZE}.
+     * @return the number of files synced
+     */
+    synchronized int maybeCheckpoint() throws IOException {
+        return size >= CHECKPOINT_SIZE ? checkpoint() : 0;
+    }
+
+    /**
+     * Syncs the node files written since the last checkpoint, then empties the journal.
+     * @return the number of files synced, including the journal
+     */
+    synchronized int checkpoint() throws IOException {
+        recover();
+        int syncs = unsynced.size();
+        for (File f : unsynced) {
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                ch.force(true);
+            } catch (NoSuchFileException x) {
+                LOGGER.log(Level.FINE, "{0} was deleted since being written", f);
+            }
+        }
+        unsynced.clear();
+        if (size > 0) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(0);
+                ch.force(false);
+            }
+            size = 0;
+            syncs++;
+        }
+        return syncs;
+    }
+
+    /**
+     * Rewrites node files from any records left by a previous run, syncs them, and empties the journal.
+     * Cheap once done, so may be called before every access to the node files.
+     */
+    void recover() throws IOException {
+        if (recovered) {
+            return;
+        }
+        synchronized (this) {
+            if (recovered) {
+                return;
+            }
+            if (file.exists()) {
+                replay();
+            }
+            recovered = true;
+        }
+    }
+
+    private void replay() throws IOException {
+        assert Thread.holdsLock(this);
+        // Later records for the same file supersede earlier ones.
+        Map<String, byte[]> latest = new LinkedHashMap<>();
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int count = 0;
+        while (buf.remaining() >= RECORD_OVERHEAD) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, buf.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, buf.position(), length));
+            String path = in.readUTF();
+            latest.remove(path);
+            latest.put(path, in.readAllBytes());
+            buf.position(buf.position() + length);
+            count++;
+        }
+        if (buf.hasRemaining()) {
+            LOGGER.log(Level.WARNING, "Ignoring incomplete record at {0}@{1}", new Object[] {file, buf.position()});
+        }
+        for (Map.Entry<String, byte[]> e : latest.entrySet()) {
+            File nodeFile = new File(dir, e.getKey());
+            Files.createDirectories(nodeFile.getParentFile().toPath());
+            try (FileChannel ch = FileChannel.open(nodeFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer contents = ByteBuffer.wrap(e.getValue());
+                while (contents.hasRemaining()) {
+                    ch.write(contents);
+                }
+                ch.force(true);
+            }
+        }
+        Files.delete(file.toPath());
+        size = 0;
+        if (count > 0) {
+            LOGGER.log(Level.INFO, "Replayed {0} journaled flow node writes in {1}", new Object[] {count, dir});
+        }
+    }
+}
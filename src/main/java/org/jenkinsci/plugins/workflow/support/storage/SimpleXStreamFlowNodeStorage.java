@@ -24,24 +24,58 @@
 
 package org.jenkinsci.plugins.workflow.support.storage;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.Striped;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.core.JVM;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.ByteArrayOutputStream;
+import java.io.FilenameFilter;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
+import hudson.Extension;
 import hudson.Util;
-import hudson.XmlFile;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.Action;
+import hudson.util.ClassLoaderSanityThreadFactory;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
 import hudson.util.RobustReflectionConverter;
 import hudson.util.XStream2;
 import org.jenkinsci.plugins.workflow.support.PipelineIOUtils;
@@ -55,70 +89,324 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * {@link FlowNodeStorage} that stores one node per one file.
  *
+ * <p>In write-behind mode (see {@link #setWriteBehind}), nodes are serialized on the calling thread but written to disk
+ *  by a background writer, with repeated writes of the same node coalesced. {@link #flush()} waits for all queued writes,
+ *  and {@link #isPersistedFully()} is false until they are done.
+ *  The same queue holds writes from {@link #saveActions} while they wait out {@link #getSaveActionsDebounceMillis()}.
+ *
+ * <p>In the sharded layout (see {@link #isSharded}), node files are spread over up to {@value #SHARDS} subdirectories
+ *  named by a hash of the node ID, so that no single directory grows with the size of the graph.
+ *
+ * <p>In group-commit mode (see {@link #setGroupCommitMillis}), writes which would otherwise each be made atomic with a sync
+ *  are held for up to that long and then written as a batch: the batch is appended to a {@link NodeJournal} which is synced once,
+ *  after which the node files are overwritten in place. Records left in the journal by a crash are replayed when the storage is next used.
+ *  A node written in this mode may thus be lost if the controller crashes within the commit window, but never left torn;
+ *  {@link #flush()} still waits until everything is durable.
+ *
+ * <p>This storage may be used by several threads at once, such as the CPS VM thread writing nodes while web requests read them.
+ *  Reads do not block on writes. Writes of the same node are serialized by a lock striped by node ID, so that the cache
+ *  and the file always end up agreeing on which write came last.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
+    /** Default for {@link #setWriteBehind}. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean WRITE_BEHIND = SystemProperties.getBoolean(SimpleXStreamFlowNodeStorage.class.getName() + ".WRITE_BEHIND", false);
+
+    /** Maximum number of distinct nodes queued for writing per execution before callers have to wait for the writer. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static int WRITE_BEHIND_QUEUE_SIZE = SystemProperties.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".WRITE_BEHIND_QUEUE_SIZE", 1000);
+
+    /** Whether storage directories created from now on use the sharded layout. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static boolean SHARDED = SystemProperties.getBoolean(SimpleXStreamFlowNodeStorage.class.getName() + ".SHARDED", false);
+
+    /** Default for {@link #setGroupCommitMillis}. */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static long GROUP_COMMIT_MILLIS = SystemProperties.getLong(SimpleXStreamFlowNodeStorage.class.getName() + ".GROUP_COMMIT_MILLIS", 0L);
+
+    /**
+     * If positive, nodes of all executions are cached in one cache bounded by about this many bytes, rather than each
+     *  execution having its own cache. A node is counted as the size of its XML, which tracks the memory it holds on to
+     *  far better than its number of actions. Entries are only evicted to stay within the bound, never by the garbage collector;
+     *  those of an execution are dropped when it completes, or when its storage is {@linkplain #close() closed}.
+     *  Read when the cache is first used; later changes have no effect until restart.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for modification from script console")
+    public static long CACHE_MAX_BYTES = SystemProperties.getLong(SimpleXStreamFlowNodeStorage.class.getName() + ".CACHE_MAX_BYTES", 0L);
+
+    /** Used instead of per-storage caches when {@link #CACHE_MAX_BYTES} is set; created on first use. */
+    private static Cache<CacheKey, Tag> sharedCache;
+
+    /** Shared by all executions; each execution has at most one write in progress at a time. */
+    private static final ExecutorService writers = createPool(SystemProperties.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".WRITER_THREADS", 4), "SimpleXStreamFlowNodeStorage.writer");
+
+    /** Shared by all executions, so that resuming many builds at once does not start a pool per build. */
+    private static final ExecutorService preloaders = createPool(SystemProperties.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".PRELOAD_THREADS", Runtime.getRuntime().availableProcessors()), "SimpleXStreamFlowNodeStorage.preloader");
+
     private final File dir;
     private final FlowExecution exec;
 
-    private final LoadingCache<String,FlowNode> nodeCache = Caffeine.newBuilder()
-            .softValues()
-            .build(key -> SimpleXStreamFlowNodeStorage.this.load(key).node);
+    private transient boolean writeBehind = WRITE_BEHIND;
+
+    private transient long groupCommitMillis = GROUP_COMMIT_MILLIS;
+
+    /** Used in group-commit mode, and replayed before any node file is read or written. */
+    private final NodeJournal journal;
+
+    /** Whether {@link #dir} uses the sharded layout, once {@link #isSharded} has determined it. */
+    private transient volatile Boolean sharded;
+
+    /** Shard subdirectories known to exist. Guarded by itself. */
+    private final BitSet createdShards = new BitSet(SHARDS);
+
+    /** Serialized nodes waiting for the background writer, by ID, in the order they were queued. Guards the fields below. */
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+
+    /** The writes the background writer is currently doing, by ID: one at a time, or a whole batch in group-commit mode. */
+    private final Map<String, PendingWrite> writing = new HashMap<>();
+
+    private boolean writerScheduled;
+
+    /** Set while the writer is waiting for a debounced write to become due. */
+    private ScheduledFuture<?> delayedDrain;
+
+    /** Number of threads waiting in {@link #flush()}, during which debounced writes are written right away. */
+    private int flushWaiters;
+
+    /** The last failure of the background writer, reported by the next {@link #flush()}. */
+    private IOException writeFailure;
+
+    /**
+     * Nodes with the actions last written or read for them, by ID, so that neither {@link #getNode} nor {@link #loadActions}
+     *  touch the disk for a node seen before. IDs with no file are cached as {@link Tag#MISSING}.
+     *  Null if this storage uses the {@link #sharedCache}.
+     */
+    private final @CheckForNull LoadingCache<String,Tag> tagCache;
+
+    private final transient FlowNodeStorageStatistics statistics;
 
     private static final Logger LOGGER = Logger.getLogger(SimpleXStreamFlowNodeStorage.class.getName());
 
     /** Holds nodes that don't have to autopersist upon writing. */
-    private transient HashMap<String, FlowNode> deferredWrite = null;
+    private final transient Map<String, FlowNode> deferredWrite = new ConcurrentHashMap<>();
+
+    private final transient Set<String> delayAutopersistIds = ConcurrentHashMap.newKeySet();
 
-    private transient HashSet<String> delayAutopersistIds = null;
+    /** Serializes writes of the same node; see {@link #lockNode}. */
+    private final transient Striped<Lock> nodeLocks = Striped.lazyWeakLock(LOCK_STRIPES);
 
     public SimpleXStreamFlowNodeStorage(FlowExecution exec, File dir) {
         this.exec = exec;
         this.dir = dir;
+        this.journal = new NodeJournal(dir);
+        this.statistics = FlowNodeStorageStatistics.create(dir.getPath());
+        if (CACHE_MAX_BYTES > 0) {
+            getOrCreateSharedCache();
+            tagCache = null;
+        } else {
+            // Unbounded, so soft values are what keeps a large graph from exhausting the heap, as they always have.
+            tagCache = Caffeine.newBuilder()
+                    .softValues()
+                    .recordStats()
+                    .build(this::loadMissed);
+        }
+    }
+
+    private static synchronized Cache<CacheKey, Tag> getOrCreateSharedCache() {
+        if (sharedCache == null) {
+            sharedCache = Caffeine.newBuilder()
+                    .maximumWeight(CACHE_MAX_BYTES)
+                    .weigher((CacheKey k, Tag t) -> t.weight())
+                    .recordStats()
+                    .build();
+        }
+        return sharedCache;
     }
 
+    /** Flushes, then drops the entries of this storage from the {@link #sharedCache}, if it uses that. */
     @Override
-    public FlowNode getNode(String id) throws IOException {
+    public void close() throws IOException {
+        flush();
+        if (tagCache == null) {
+            getOrCreateSharedCache().asMap().keySet().removeIf(k -> k.storage == this);
+        }
+    }
+
+    /** Drops the entries of an execution from the {@link #sharedCache} once it completes, since they are then rarely read again. */
+    @Extension
+    public static final class SharedCacheCleaner extends FlowExecutionListener {
+        @Override
+        public void onCompleted(@NonNull FlowExecution execution) {
+            Cache<CacheKey, Tag> cache;
+            synchronized (SimpleXStreamFlowNodeStorage.class) {
+                cache = sharedCache;
+            }
+            if (cache != null) {
+                cache.asMap().keySet().removeIf(k -> k.storage.exec == execution);
+            }
+        }
+    }
+
+    /**
+     * Statistics of the cache used by this storage: its own, or the one shared by all executions
+     *  if {@link #CACHE_MAX_BYTES} was set when it was created.
+     */
+    public @NonNull CacheStats getCacheStats() {
+        return tagCache != null ? tagCache.stats() : getOrCreateSharedCache().stats();
+    }
+
+    /**
+     * Statistics of the cache shared by all executions, or null if {@link #CACHE_MAX_BYTES} has not been used.
+     * The statistics include evictions, which are what to look at when sizing the cache.
+     */
+    @Restricted(NoExternalUse.class)
+    public static synchronized @CheckForNull CacheStats getSharedCacheStats() {
+        return sharedCache != null ? sharedCache.stats() : null;
+    }
+
+    private Tag getTag(String id) throws IOException {
         try {
-            if (deferredWrite != null) {
-                FlowNode maybeOutput = deferredWrite.get(id);
-                if (maybeOutput != null) {
-                    return maybeOutput;
-                }
+            if (tagCache != null) {
+                return tagCache.get(id);
             }
-            return nodeCache.get(id);
+            return getOrCreateSharedCache().get(new CacheKey(this, id), k -> {
+                try {
+                    return loadMissed(id);
+                } catch (IOException x) {
+                    throw new CompletionException(x);
+                }
+            });
         } catch (CompletionException x) {
-            Throwable cause = x.getCause();
-            if (cause instanceof NoSuchFileException) {
-                LOGGER.finer("Tried to load FlowNode where file does not exist, for id "+id);
-                // No file, no node
-                return null;
-            } else {
-                throw new IOException(cause);
+            throw new IOException(x.getCause());
+        }
+    }
+
+    private void cacheTag(String id, Tag tag) {
+        if (tagCache != null) {
+            tagCache.put(id, tag);
+        } else {
+            getOrCreateSharedCache().put(new CacheKey(this, id), tag);
+        }
+    }
+
+    private boolean isCached(String id) {
+        if (tagCache != null) {
+            return tagCache.getIfPresent(id) != null;
+        } else {
+            return getOrCreateSharedCache().getIfPresent(new CacheKey(this, id)) != null;
+        }
+    }
+
+    /** Caches a node read from disk, unless a write has cached a newer version meanwhile. */
+    private void cacheLoadedTag(String id, Tag tag) {
+        if (tagCache != null) {
+            tagCache.asMap().putIfAbsent(id, tag);
+        } else {
+            getOrCreateSharedCache().asMap().putIfAbsent(new CacheKey(this, id), tag);
+        }
+    }
+
+    /**
+     * Reads the requested node files on a pool shared by all executions, so that resuming a build
+     *  is not limited to one file read at a time. Nodes which fail to load are left for {@link #getNode} to report.
+     */
+    @Override
+    public void preload(@CheckForNull Collection<String> ids) throws IOException {
+        if (ids == null) {
+            journal.recover();
+            List<File> files = listNodeFiles(dir);
+            ids = new ArrayList<>(files.size());
+            for (File f : files) {
+                ids.add(f.getName().substring(0, f.getName().length() - ".xml".length()));
             }
         }
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (String id : ids) {
+            if (deferredWrite.containsKey(id) || getPendingWrite(id) != null || isCached(id)) {
+                continue;
+            }
+            loads.add(CompletableFuture.runAsync(() -> {
+                try {
+                    cacheLoadedTag(id, loadOrMissing(id));
+                } catch (IOException | RuntimeException x) {
+                    LOGGER.log(Level.FINE, "Failed to preload flow node " + id + " from " + dir, x);
+                }
+            }, preloaders));
+        }
+        try {
+            CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException x) {
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted preloading flow nodes from " + dir).initCause(x);
+        } catch (ExecutionException x) {
+            throw new IOException(x.getCause());
+        }
+    }
+
+    /** If true, node files are written by a background writer, and only {@link #flush()} guarantees they are on disk. */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /** Set whether node files should be written by a background writer rather than on the calling thread. */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * If positive, writes which would each be synced are instead synced as a batch through a journal at most this often.
+     * Has no effect if {@link #isAvoidAtomicWrite()}.
+     */
+    public long getGroupCommitMillis() {
+        return groupCommitMillis;
+    }
+
+    /** Set how long writes may be held back to be synced together with others; zero to sync each write on its own. */
+    public void setGroupCommitMillis(long groupCommitMillis) {
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+    private boolean isGroupCommit() {
+        return groupCommitMillis > 0 && !isAvoidAtomicWrite();
+    }
+
+    @Override
+    public FlowNode getNode(String id) throws IOException {
+        statistics.recordRead();
+        FlowNode maybeOutput = deferredWrite.get(id);
+        if (maybeOutput != null) {
+            return maybeOutput;
+        }
+        PendingWrite pending = getPendingWrite(id);
+        if (pending != null) {
+            return pending.node;
+        }
+        return getTag(id).node; // null for Tag.MISSING: no file, no node
     }
 
     @Override
     public void storeNode(@NonNull FlowNode n, boolean delayWritingActions) throws IOException {
         if (delayWritingActions) {
-            if (deferredWrite == null) {
-                deferredWrite = new HashMap<>();
-            }
             deferredWrite.put(n.getId(), n);
-            if (delayAutopersistIds == null) {
-                delayAutopersistIds = new HashSet<>(2);
-            }
             delayAutopersistIds.add(n.getId());
         } else {  // Flush, not that we still have to explicitly toggle autopersist for the node
             flushNode(n);
@@ -130,85 +418,570 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
         storeNode(n, false);
     }
 
+    @Override
+    public void storeNodes(@NonNull Collection<FlowNode> nodes, boolean delayWritingActions) throws IOException {
+        if (delayWritingActions) {
+            super.storeNodes(nodes, true);
+            return;
+        }
+        writeNodes(nodes);
+        for (FlowNode n : nodes) {
+            deferredWrite.remove(n.getId(), n);
+        }
+    }
+
     @Override
     public void autopersist(@NonNull FlowNode n) throws IOException {
-        if (deferredWrite != null && deferredWrite.containsKey(n.getId())) {
+        if (deferredWrite.containsKey(n.getId())) {
             flushNode(n);
         }
-        if (delayAutopersistIds != null) {
-            delayAutopersistIds.remove(n.getId());
-        }
+        delayAutopersistIds.remove(n.getId());
         // No-op if we weren't deferring a write of the node
     }
 
     /**
      * Persists a single FlowNode to disk (if not already persisted).
+     * Written on the calling thread even in write-behind, debounce or group-commit mode, superseding any queued write of the node.
      * @param n Node to persist
      * @throws IOException
      */
     @Override
     public void flushNode(@NonNull FlowNode n) throws IOException {
-        writeNode(n, n.getActions());
-        if (deferredWrite != null) {
-            deferredWrite.remove(n.getId());
-        }
+        writeNow(new Tag(n, n.getActions()));
+        deferredWrite.remove(n.getId(), n);
     }
 
-    /** Force persisting any nodes that had writing deferred */
+    /** Force persisting any nodes that had writing deferred, and wait for any queued writes */
     @Override
     public void flush() throws IOException {
-        if (deferredWrite != null && !deferredWrite.isEmpty()) {
-            Collection<FlowNode> toWrite = deferredWrite.values();
-            for (FlowNode f : toWrite) {
-                writeNode(f, f.getActions());
+        long start = System.nanoTime();
+        boolean wrote = false;
+        if (!deferredWrite.isEmpty()) {
+            List<FlowNode> deferred = new ArrayList<>(deferredWrite.values());
+            writeNodes(deferred);
+            // Only those written: others may have been deferred meanwhile.
+            for (FlowNode n : deferred) {
+                deferredWrite.remove(n.getId(), n);
             }
-            deferredWrite.clear();
+            wrote = true;
+        }
+        if (awaitPendingWrites()) {
+            wrote = true;
+        }
+        if (wrote) {
+            statistics.recordFlush(exec, System.nanoTime() - start);
         }
     }
 
-    private File getNodeFile(String id) {
+    @Override
+    public @NonNull FlowNodeStorageStatistics getStatistics() {
+        return statistics;
+    }
+
+    /** Deletes the files of nodes not reachable from the heads. Node files hold no superseded records, so nothing else is rewritten. */
+    @Override
+    public int compact(@NonNull Collection<String> headIds) throws IOException {
+        flush();
+        Set<String> reachable = reachableFrom(headIds);
+        checkpointJournal(); // so that recovery cannot bring back a deleted node
+        int dropped = 0;
+        for (File f : listNodeFiles(dir)) {
+            String id = f.getName().substring(0, f.getName().length() - ".xml".length());
+            if (reachable.contains(id)) {
+                continue;
+            }
+            Lock lock = lockNode(id);
+            try {
+                cacheTag(id, Tag.MISSING);
+                Files.deleteIfExists(f.toPath());
+            } finally {
+                lock.unlock();
+            }
+            dropped++;
+        }
+        LOGGER.log(Level.FINE, "Dropped {0} unreachable nodes from {1}", new Object[] {dropped, dir});
+        return dropped;
+    }
+
+    private File getNodeFile(String id) throws IOException {
+        return getNodeFile(id, isSharded());
+    }
+
+    private File getNodeFile(String id, boolean sharded) {
+        if (sharded) {
+            return new File(new File(dir, SHARD_NAMES[shardOf(id)]), id + ".xml");
+        }
         return new File(dir,id+".xml");
     }
 
+    /** Like {@link #getNodeFile}, also settling the layout of a new directory and creating the shard subdirectory if needed. */
+    private File getNodeFileForWrite(String id) throws IOException {
+        boolean sharded = decideLayout(true);
+        File f = getNodeFile(id, sharded);
+        if (sharded) {
+            int shard = shardOf(id);
+            synchronized (createdShards) {
+                if (!createdShards.get(shard)) {
+                    IOUtils.mkdirs(f.getParentFile());
+                    createdShards.set(shard);
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Whether node files are kept in subdirectories of the storage directory rather than directly in it.
+     * This is decided once per directory, when the first node is written: a new (or empty) directory is sharded if {@link #SHARDED} is set,
+     *  while an existing directory keeps the layout it was created with, so builds started before the option
+     *  was changed remain readable.
+     * Until then this reports the layout the directory would get, without creating anything.
+     */
+    public boolean isSharded() throws IOException {
+        return decideLayout(false);
+    }
+
+    /**
+     * Determines the layout of {@link #dir}, remembering it once the directory has one.
+     * @param forWrite whether a node is about to be written, so an empty directory must be given its layout now
+     */
+    private boolean decideLayout(boolean forWrite) throws IOException {
+        Boolean result = sharded;
+        if (result == null) {
+            synchronized (createdShards) {
+                result = sharded;
+                if (result == null) {
+                    File marker = new File(dir, SHARDED_MARKER);
+                    if (marker.isFile()) {
+                        result = true;
+                    } else if (!isEmptyDirectory(dir)) {
+                        result = false;
+                    } else if (!forWrite) {
+                        // Nothing to read in either layout; leave the decision to the first write.
+                        return SHARDED;
+                    } else if (SHARDED) {
+                        IOUtils.mkdirs(dir);
+                        Files.write(marker.toPath(), new byte[0]);
+                        result = true;
+                    } else {
+                        result = false;
+                    }
+                    sharded = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isEmptyDirectory(File dir) throws IOException {
+        if (!dir.exists()) {
+            return true;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+            return !entries.iterator().hasNext();
+        }
+    }
+
+    private static int shardOf(String id) {
+        return id.hashCode() & (SHARDS - 1);
+    }
+
+    /** Lists the node files in a storage directory, whichever layout it uses. */
+    static List<File> listNodeFiles(@NonNull File dir) {
+        List<File> result = new ArrayList<>();
+        // Skip the store of a directory being converted to or from BulkFlowNodeStorage.
+        FilenameFilter xml = (d, name) -> name.endsWith(".xml") && !name.equals(BulkFlowNodeStorage.STORE_FILE_NAME);
+        File[] files = dir.listFiles(xml);
+        if (files != null) {
+            result.addAll(Arrays.asList(files));
+        }
+        if (new File(dir, SHARDED_MARKER).isFile()) {
+            for (String shard : SHARD_NAMES) {
+                files = new File(dir, shard).listFiles(xml);
+                if (files != null) {
+                    result.addAll(Arrays.asList(files));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Removes all node files from a storage directory, whichever layout it uses, for example once converted to another format. */
+    static void deleteNodeFiles(@NonNull File dir) throws IOException {
+        for (File f : listNodeFiles(dir)) {
+            Files.deleteIfExists(f.toPath());
+        }
+        Files.deleteIfExists(new File(dir, NodeJournal.FILE_NAME).toPath());
+        File marker = new File(dir, SHARDED_MARKER);
+        if (marker.isFile()) {
+            boolean empty = true;
+            for (String shard : SHARD_NAMES) {
+                try {
+                    Files.deleteIfExists(new File(dir, shard).toPath());
+                } catch (DirectoryNotEmptyException x) {
+                    LOGGER.log(Level.FINE, "Leaving non-empty {0}", x.getFile());
+                    empty = false;
+                }
+            }
+            if (empty) {
+                Files.delete(marker.toPath());
+            }
+        }
+    }
+
+    /**
+     * Rewrites the node files of an existing storage directory, such as that of a completed build, with or without compression.
+     * Must not be used on the directory of a running execution.
+     * @return the number of files rewritten
+     */
+    public static int recompress(@NonNull File dir, boolean compress) throws IOException {
+        int count = 0;
+        for (File f : listNodeFiles(dir)) {
+            if (PipelineIOUtils.recompress(f, compress)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Override
     public List<Action> loadActions(@NonNull FlowNode node) throws IOException {
-
-        if (!getNodeFile(node.getId()).exists()) {
-            return new ArrayList<>(); // not yet saved
+        statistics.recordRead();
+        PendingWrite pending = getPendingWrite(node.getId());
+        if (pending != null) {
+            return new ArrayList<>(pending.actions);
         }
-        return load(node.getId()).actions();
+        return new ArrayList<>(getTag(node.getId()).actions()); // empty if not yet saved
     }
 
     private void writeNode(FlowNode node, List<Action> actions) throws IOException {
-        nodeCache.put(node.getId(), node);
-        PipelineIOUtils.writeByXStream(new Tag(node, actions), getNodeFile(node.getId()), XSTREAM, !this.isAvoidAtomicWrite());
+        writeNode(node, actions, 0);
+    }
+
+    /**
+     * Writes a node, or queues the write if we are in write-behind mode or were asked to wait before writing.
+     * @param debounceMillis how long the write may be held back to collapse it with later writes of the same node
+     */
+    private void writeNode(FlowNode node, List<Action> actions, long debounceMillis) throws IOException {
+        Tag tag = new Tag(node, actions);
+        boolean groupCommit = isGroupCommit();
+        if (writeBehind || debounceMillis > 0 || groupCommit) {
+            byte[] data = serialize(tag);
+            long delayMillis = groupCommit ? Math.max(debounceMillis, groupCommitMillis) : debounceMillis;
+            long notBefore = delayMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) : Long.MIN_VALUE;
+            Lock lock = lockNode(node.getId());
+            try {
+                cacheTag(node.getId(), tag);
+                enqueue(new PendingWrite(node, tag.actions(), data, notBefore));
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            writeNow(tag);
+        }
+    }
+
+    /** Writes a node on the calling thread, superseding any queued write of it. */
+    private void writeNow(Tag tag) throws IOException {
+        String id = tag.node.getId();
+        byte[] data = serialize(tag);
+        Lock lock = lockNode(id);
+        try {
+            cacheTag(id, tag);
+            cancelPendingWrite(id);
+            writeFile(tag, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Serializes a node file, compressed if so configured, recording the size of its XML in the tag for the cache. */
+    private byte[] serialize(Tag tag) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        CountingOutputStream xml;
+        try (OutputStream os = isCompressed() ? new GZIPOutputStream(data) : data) {
+            xml = new CountingOutputStream(os);
+            XSTREAM.toXMLUTF8(tag, xml);
+        }
+        tag.size = (int) Math.min(xml.getCount(), Integer.MAX_VALUE);
+        return data.toByteArray();
+    }
+
+    /**
+     * Acquires the lock serializing writes of a node, so that concurrent writes of the same node
+     *  cannot leave the cache holding one version and the file another. Writes of different nodes only rarely share a stripe.
+     */
+    private Lock lockNode(String id) throws IOException {
+        Lock lock = nodeLocks.get(id);
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException x) {
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted waiting to write flow node " + id).initCause(x);
+        }
+        return lock;
+    }
+
+    private void writeFile(Tag tag, byte[] data) throws IOException {
+        checkpointJournal();
+        File f = getNodeFileForWrite(tag.node.getId());
+        PipelineIOUtils.writeBytes(data, f, !this.isAvoidAtomicWrite());
+        statistics.recordWrite(data.length);
+        if (!isAvoidAtomicWrite()) {
+            statistics.recordSync();
+        }
+    }
+
+    /**
+     * Writes several nodes, with their current actions.
+     * Written one after another on the calling thread, so that a flush never waits behind the writes of other executions;
+     *  in write-behind or group-commit mode they are queued together, to be written in one round.
+     */
+    private void writeNodes(Collection<FlowNode> nodes) throws IOException {
+        for (FlowNode n : nodes) {
+            writeNode(n, n.getActions());
+        }
+    }
+
+    /**
+     * Queues a write, replacing any queued write of the same node, and waiting if the queue is full.
+     * A replaced write keeps its place in the queue, and the earlier of the two times it may be written.
+     */
+    private void enqueue(PendingWrite w) throws IOException {
+        String id = w.node.getId();
+        synchronized (pendingWrites) {
+            while (pendingWrites.size() >= WRITE_BEHIND_QUEUE_SIZE && !pendingWrites.containsKey(id)) {
+                try {
+                    pendingWrites.wait();
+                } catch (InterruptedException x) {
+                    throw (InterruptedIOException) new InterruptedIOException("Interrupted waiting to queue write of " + id).initCause(x);
+                }
+            }
+            PendingWrite replaced = pendingWrites.get(id);
+            if (replaced != null && replaced.notBefore < w.notBefore) {
+                w = new PendingWrite(w.node, w.actions, w.data, replaced.notBefore);
+            }
+            pendingWrites.put(id, w);
+            if (!writerScheduled) {
+                writerScheduled = true;
+                writers.submit(this::drainPendingWrites);
+            } else {
+                wakeWriter();
+            }
+        }
+    }
+
+    /** Drops any queued write of a node we are about to write directly, waiting if it is being written right now. */
+    private void cancelPendingWrite(String id) throws IOException {
+        synchronized (pendingWrites) {
+            pendingWrites.remove(id);
+            while (writing.containsKey(id)) {
+                try {
+                    pendingWrites.wait();
+                } catch (InterruptedException x) {
+                    throw (InterruptedIOException) new InterruptedIOException("Interrupted waiting for write of " + id).initCause(x);
+                }
+            }
+        }
+    }
+
+    /** If the writer is waiting for a debounced write to become due, has it look at the queue again right away. */
+    private void wakeWriter() {
+        assert Thread.holdsLock(pendingWrites);
+        if (delayedDrain != null && delayedDrain.cancel(false)) {
+            delayedDrain = null;
+            writers.submit(this::drainPendingWrites);
+        }
+    }
+
+    /**
+     * Run by the background writer until the queue is empty, or until nothing left in it is due yet.
+     * In group-commit mode, once anything is due the whole queue is written as one batch.
+     */
+    private void drainPendingWrites() {
+        while (true) {
+            List<PendingWrite> batch = new ArrayList<>();
+            boolean groupCommit = isGroupCommit();
+            synchronized (pendingWrites) {
+                if (pendingWrites.isEmpty()) {
+                    writerScheduled = false;
+                    pendingWrites.notifyAll();
+                    return;
+                }
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (PendingWrite candidate : pendingWrites.values()) {
+                    long remaining = candidate.notBefore == Long.MIN_VALUE ? 0 : candidate.notBefore - now;
+                    if (flushWaiters > 0 || remaining <= 0) {
+                        batch.add(candidate);
+                        break;
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                if (batch.isEmpty()) {
+                    // Nothing due yet; come back when the first write is, keeping writerScheduled set meanwhile.
+                    delayedDrain = Timer.get().schedule(() -> {
+                        synchronized (pendingWrites) {
+                            delayedDrain = null;
+                        }
+                        writers.submit(this::drainPendingWrites);
+                    }, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                if (groupCommit) {
+                    batch = new ArrayList<>(pendingWrites.values());
+                    pendingWrites.clear();
+                } else {
+                    pendingWrites.remove(batch.get(0).node.getId());
+                }
+                for (PendingWrite w : batch) {
+                    writing.put(w.node.getId(), w);
+                }
+                pendingWrites.notifyAll();
+            }
+            IOException failure = null;
+            try {
+                if (groupCommit) {
+                    commit(batch);
+                } else {
+                    PendingWrite w = batch.get(0);
+                    checkpointJournal();
+                    PipelineIOUtils.writeBytes(w.data, getNodeFileForWrite(w.node.getId()), !this.isAvoidAtomicWrite());
+                    statistics.recordWrite(w.data.length);
+                    if (!isAvoidAtomicWrite()) {
+                        statistics.recordSync();
+                    }
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Failed to write " + batch.size() + " flow node(s) to " + dir, x);
+                failure = x;
+            }
+            synchronized (pendingWrites) {
+                writing.clear();
+                if (failure != null) {
+                    writeFailure = failure;
+                }
+                pendingWrites.notifyAll();
+            }
+        }
+    }
+
+    /** Makes a batch durable with one sync of the {@link #journal}, then writes the node files without syncing them. */
+    private void commit(List<PendingWrite> batch) throws IOException {
+        Map<File, byte[]> files = new LinkedHashMap<>();
+        for (PendingWrite w : batch) {
+            files.put(getNodeFileForWrite(w.node.getId()), w.data);
+        }
+        statistics.recordWrite(journal.append(files));
+        statistics.recordSync();
+        for (Map.Entry<File, byte[]> e : files.entrySet()) {
+            PipelineIOUtils.writeBytes(e.getValue(), e.getKey(), false);
+            statistics.recordWrite(e.getValue().length);
+            journal.written(e.getKey());
+        }
+        statistics.recordSyncs(journal.maybeCheckpoint());
+    }
+
+    /**
+     * Before writing a node file other than through the {@link #journal}, makes sure that nothing in the journal could be replayed over it.
+     * Also replays anything left in the journal by a previous run.
+     */
+    private void checkpointJournal() throws IOException {
+        if (!journal.isEmpty()) {
+            statistics.recordSyncs(journal.checkpoint());
+        }
+    }
+
+    /**
+     * Waits for the background writer to finish all queued writes, including debounced ones which are not due yet,
+     * and reports any failure since the last call.
+     * @return whether there was anything to wait for
+     */
+    private boolean awaitPendingWrites() throws IOException {
+        synchronized (pendingWrites) {
+            boolean pending = !pendingWrites.isEmpty() || !writing.isEmpty();
+            flushWaiters++;
+            try {
+                wakeWriter();
+                while (!pendingWrites.isEmpty() || !writing.isEmpty()) {
+                    try {
+                        pendingWrites.wait();
+                    } catch (InterruptedException x) {
+                        throw (InterruptedIOException) new InterruptedIOException("Interrupted waiting for flow nodes to be written to " + dir).initCause(x);
+                    }
+                }
+            } finally {
+                flushWaiters--;
+            }
+            IOException failure = writeFailure;
+            writeFailure = null;
+            if (failure != null) {
+                throw new IOException("Failed to write some flow nodes to " + dir, failure);
+            }
+            return pending;
+        }
+    }
+
+    /** @return the write queued or in progress for this node, if any */
+    private @CheckForNull PendingWrite getPendingWrite(String id) {
+        synchronized (pendingWrites) {
+            PendingWrite w = pendingWrites.get(id);
+            return w != null ? w : writing.get(id);
+        }
     }
 
     /**
      * Just stores this one node, using the supplied actions.
      * GOTCHA: technically there's nothing ensuring that node.getActions() matches supplied actions.
+     * Honors {@link #getSaveActionsDebounceMillis()}.
      */
     @Override
     public void saveActions(@NonNull FlowNode node, @NonNull List<Action> actions) throws IOException {
-        if (delayAutopersistIds != null && delayAutopersistIds.contains(node.getId())) {
+        if (delayAutopersistIds.contains(node.getId())) {
             deferredWrite.put(node.getId(), node);
         } else {
-            writeNode(node, actions);
+            writeNode(node, actions, getSaveActionsDebounceMillis());
         }
     }
 
     /** Have we written everything to disk that we need to, or is there something waiting to be written */
     @Override
     public boolean isPersistedFully() {
-        return this.deferredWrite == null || this.deferredWrite.isEmpty();
+        if (!deferredWrite.isEmpty()) {
+            return false;
+        }
+        synchronized (pendingWrites) {
+            return pendingWrites.isEmpty() && writing.isEmpty();
+        }
+    }
+
+    /** Loads a node requested through {@link #getTag} but not found in the cache. */
+    private Tag loadMissed(String id) throws IOException {
+        statistics.recordMiss();
+        return loadOrMissing(id);
+    }
+
+    private Tag loadOrMissing(String id) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Tag t = load(id);
+            statistics.recordLoad(System.nanoTime() - start);
+            return t;
+        } catch (NoSuchFileException x) {
+            LOGGER.finer("Tried to load FlowNode where file does not exist, for id "+id);
+            return Tag.MISSING;
+        }
     }
 
     private Tag load(String id) throws IOException {
-        XmlFile nodeFile = new XmlFile(XSTREAM, getNodeFile(id));
-        Tag v = (Tag) nodeFile.read();
-        if (v.node == null) {
-            throw new IOException("failed to load flow node from " + nodeFile + ": " + nodeFile.asString());
+        journal.recover();
+        File nodeFile = getNodeFile(id);
+        byte[] xml;
+        try (InputStream in = PipelineIOUtils.openMaybeCompressed(nodeFile)) {
+            xml = in.readAllBytes();
         }
+        FlowNodeCodec.Decoded decoded = STREAMING_READER.read(xml, nodeFile);
+        Tag v = new Tag(decoded.node, decoded.actions);
+        v.size = xml.length;
         try {
             FlowNode$exec.set(v.node, exec);
         } catch (IllegalAccessException e) {
@@ -222,14 +995,49 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
     }
 
 
+    /** A node serialized on the calling thread, waiting to be written by the background writer. */
+    private static final class PendingWrite {
+        final FlowNode node;
+        final List<Action> actions;
+        final byte[] data;
+        /** {@link System#nanoTime} before which this should not be written unless flushing, or {@link Long#MIN_VALUE} to write right away. */
+        final long notBefore;
+
+        PendingWrite(FlowNode node, List<Action> actions, byte[] data, long notBefore) {
+            this.node = node;
+            this.actions = actions;
+            this.data = data;
+            this.notBefore = notBefore;
+        }
+    }
+
+    private static ExecutorService createPool(int threads, String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new ClassLoaderSanityThreadFactory(new DaemonThreadFactory()), name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     /**
      * To group node and their actions together into one object.
+     * Also the record form of {@link XStreamFlowNodeCodec}.
      */
-    private static class Tag {
-        final /* @NonNull except perhaps after deserialization */ FlowNode node;
+    static class Tag {
+        /** Cached for nodes which have not been written. */
+        static final Tag MISSING = new Tag();
+
+        final /* @NonNull except perhaps after deserialization, or for MISSING */ FlowNode node;
         private final @CheckForNull List<Action> actions;
 
-        private Tag(@NonNull FlowNode node, @NonNull List<Action> actions) {
+        /** Bytes of the XML this was last read from or written as, or 0 if unknown. */
+        transient int size;
+
+        private Tag() {
+            this.node = null;
+            this.actions = null;
+        }
+
+        Tag(@NonNull FlowNode node, @NonNull List<Action> actions) {
             this.node = node;
             this.actions = actions.isEmpty() ? null : new ArrayList<>(actions);
         }
@@ -245,6 +1053,36 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
         public @NonNull List<Action> actions() {
             return actions != null ? Collections.unmodifiableList(actions) : Collections.emptyList();
         }
+
+        /** For {@link #CACHE_MAX_BYTES}; the XML is a fair estimate of the memory a node holds on to, plus the cache entry itself. */
+        int weight() {
+            return ENTRY_OVERHEAD + size;
+        }
+
+        /** Rough bytes taken by a cache entry beyond the node, so that even {@link #MISSING} entries count against the bound. */
+        private static final int ENTRY_OVERHEAD = 100;
+    }
+
+    /** Key in the {@link #sharedCache}. */
+    private static final class CacheKey {
+        /** Compared by identity; held strongly, as the cached nodes refer to their execution and so to the storage anyway. */
+        final SimpleXStreamFlowNodeStorage storage;
+        final String id;
+
+        CacheKey(SimpleXStreamFlowNodeStorage storage, String id) {
+            this.storage = storage;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CacheKey && ((CacheKey) o).storage == storage && ((CacheKey) o).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(storage) + id.hashCode();
+        }
     }
 
     @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
@@ -255,50 +1093,69 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
 
     public static final XStream2 XSTREAM = new XStream2();
 
+    /** Reads node files without unmarshalling the {@link Tag} wrapper; see {@link #load}. */
+    private static final FlowNodeXmlReader STREAMING_READER = new FlowNodeXmlReader(XSTREAM);
+
+    /** Number of stripes of {@link #nodeLocks} per storage. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Number of shard subdirectories; must be a power of two. */
+    private static final int SHARDS = 256;
+    private static final String[] SHARD_NAMES = new String[SHARDS];
+    /** Present in a storage directory which uses the sharded layout. */
+    private static final String SHARDED_MARKER = "sharded";
+
     private static final Field FlowNode$exec;
     private static final Field FlowNode$parents;
     private static final Field FlowNode$parentIds;
     private static final Method FlowNode_setActions;
 
-    static {
-        XSTREAM.registerConverter(new Converter() {
-            private final RobustReflectionConverter ref = new RobustReflectionConverter(XSTREAM.getMapper(), JVM.newReflectionProvider());
-            // IdentityHashMap could leak memory. WeakHashMap compares by equals, which will fail with NPE in FlowNode.hashCode.
-            private final Map<FlowNode,String> ids = Caffeine.newBuilder().weakKeys().<FlowNode,String>build().asMap();
-            @Override public boolean canConvert(Class type) {
-                return FlowNode.class.isAssignableFrom(type);
-            }
-            @Override public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
-                ref.marshal(source, writer, context);
-            }
-            @Override public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+    /** Reads nodes by reflection, converting the {@code parents} of nodes written by old versions to {@code parentIds}. */
+    static final Converter NODE_CONVERTER = new Converter() {
+        private final RobustReflectionConverter ref = new RobustReflectionConverter(XSTREAM.getMapper(), JVM.newReflectionProvider());
+        // IdentityHashMap could leak memory. WeakHashMap compares by equals, which will fail with NPE in FlowNode.hashCode.
+        private final Map<FlowNode,String> ids = Caffeine.newBuilder().weakKeys().<FlowNode,String>build().asMap();
+        @Override public boolean canConvert(Class type) {
+            return FlowNode.class.isAssignableFrom(type);
+        }
+        @Override public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            ref.marshal(source, writer, context);
+        }
+        @Override public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            try {
+                FlowNode n = (FlowNode) ref.unmarshal(reader, context);
+                ids.put(n, reader.getValue());
                 try {
-                    FlowNode n = (FlowNode) ref.unmarshal(reader, context);
-                    ids.put(n, reader.getValue());
-                    try {
-                        @SuppressWarnings("unchecked") List<FlowNode> parents = (List<FlowNode>) FlowNode$parents.get(n);
-                        if (parents != null) {
-                            @SuppressWarnings("unchecked") List<String> parentIds = (List<String>) FlowNode$parentIds.get(n);
-                            assert parentIds == null;
-                            parentIds = new ArrayList<>(parents.size());
-                            for (FlowNode parent : parents) {
-                                String id = ids.get(parent);
-                                assert id != null;
-                                parentIds.add(id);
-                            }
-                            FlowNode$parents.set(n, null);
-                            FlowNode$parentIds.set(n, parentIds);
+                    @SuppressWarnings("unchecked") List<FlowNode> parents = (List<FlowNode>) FlowNode$parents.get(n);
+                    if (parents != null) {
+                        @SuppressWarnings("unchecked") List<String> parentIds = (List<String>) FlowNode$parentIds.get(n);
+                        assert parentIds == null;
+                        parentIds = new ArrayList<>(parents.size());
+                        for (FlowNode parent : parents) {
+                            String id = ids.get(parent);
+                            assert id != null;
+                            parentIds.add(id);
                         }
-                    } catch (Exception x) {
-                        assert false : x;
+                        FlowNode$parents.set(n, null);
+                        FlowNode$parentIds.set(n, parentIds);
                     }
-                    return n;
-                } catch (RuntimeException x) {
-                    x.printStackTrace();
-                    throw x;
+                } catch (Exception x) {
+                    assert false : x;
                 }
+                return n;
+            } catch (RuntimeException x) {
+                x.printStackTrace();
+                throw x;
             }
-        });
+        }
+    };
+
+    static {
+        XSTREAM.registerConverter(NODE_CONVERTER);
+
+        for (int i = 0; i < SHARDS; i++) {
+            SHARD_NAMES[i] = String.format("%02x", i);
+        }
 
         // Aliases reduce the amount of data persisted to disk
         XSTREAM.alias("Tag", Tag.class);
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Action;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage.Tag;
+
+import static org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage.XSTREAM;
+
+/**
+ * Encodes a node and its actions as XML, in the same form and with the same {@link SimpleXStreamFlowNodeStorage#XSTREAM} as {@link SimpleXStreamFlowNodeStorage} uses for its files.
+ * Handles any node or action type, at the cost of going through reflection-based XStream conversion.
+ */
+final class XStreamFlowNodeCodec implements FlowNodeCodec {
+
+    static final byte ID = 0;
+
+    static final XStreamFlowNodeCodec INSTANCE = new XStreamFlowNodeCodec();
+
+    private XStreamFlowNodeCodec() {}
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void write(@NonNull FlowNode node, @NonNull List<Action> actions, @NonNull DataOutputStream out) throws IOException {
+        XSTREAM.toXMLUTF8(new Tag(node, actions), out);
+    }
+
+    @Override
+    public @NonNull Decoded read(@NonNull DataInputStream in) throws IOException {
+        Tag v;
+        try {
+            v = (Tag) XSTREAM.fromXML(in);
+        } catch (RuntimeException x) {
+            throw new IOException("failed to read flow node", x);
+        }
+        if (v.node == null) {
+            throw new IOException("failed to read flow node: no node in record");
+        }
+        return new Decoded(v.node, v.actions());
+    }
+}
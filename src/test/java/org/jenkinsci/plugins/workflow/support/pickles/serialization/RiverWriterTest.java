@@ -25,17 +25,25 @@
 package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 
 import hudson.Functions;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.NotSerializableException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.logging.Level;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.rules.TemporaryFolder;
@@ -60,6 +68,113 @@ public class RiverWriterTest {
         assertEquals(Collections.singletonList("hello world"), o);
     }
 
+    @Test public void largerThanBuffer() throws Exception {
+        File f = tmp.newFile();
+        FlowExecutionOwner owner = FlowExecutionOwner.dummyOwner();
+        ArrayList<String> big = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            big.add("item #" + i);
+        }
+        try (RiverWriter w = new RiverWriter(f, owner, Collections.emptySet())) {
+            w.writeObject(big);
+        }
+        Object o;
+        try (RiverReader r = new RiverReader(f, RiverWriterTest.class.getClassLoader(), owner)) {
+            o = r.restorePickles(new ArrayList<>()).get().readObject();
+        }
+        assertEquals(big, o);
+    }
+
+    @Test public void compressed() throws Exception {
+        FlowExecutionOwner owner = FlowExecutionOwner.dummyOwner();
+        ArrayList<String> big = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            big.add("item #" + i);
+        }
+        File plain = tmp.newFile();
+        try (RiverWriter w = new RiverWriter(plain, owner, Collections.emptySet())) {
+            w.writeObject(big);
+        }
+        File f = tmp.newFile();
+        boolean old = RiverWriter.COMPRESS;
+        RiverWriter.COMPRESS = true;
+        try (RiverWriter w = new RiverWriter(f, owner, Collections.emptySet())) {
+            w.writeObject(big);
+        } finally {
+            RiverWriter.COMPRESS = old;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            assertEquals(RiverWriter.HEADER, in.readLong());
+            assertEquals(RiverWriter.COMPRESSED_VERSION, in.readShort());
+        }
+        assertThat(f.length(), lessThan(plain.length() / 2));
+        Object o;
+        try (RiverReader r = new RiverReader(f, RiverWriterTest.class.getClassLoader(), owner)) {
+            o = r.restorePickles(new ArrayList<>()).get().readObject();
+        }
+        assertEquals(big, o);
+    }
+
+    @Test public void corruptionReport() throws Exception {
+        File f = tmp.newFile();
+        FlowExecutionOwner owner = FlowExecutionOwner.dummyOwner();
+        ArrayList<String> big = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            big.add("item #" + i);
+        }
+        try (RiverWriter w = new RiverWriter(f, owner, Collections.emptySet())) {
+            w.writeObject(big);
+        }
+        int offset;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(10);
+            offset = raf.readInt();
+            raf.seek(offset);
+            raf.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        }
+        try (RiverReader r = new RiverReader(f, RiverWriterTest.class.getClassLoader(), owner)) {
+            try {
+                r.restorePickles(new ArrayList<>());
+                fail();
+            } catch (IOException x) {
+                CorruptionReport report = r.getCorruptionReport();
+                assertNotNull(report);
+                assertEquals(offset, report.getStreamOffset());
+                assertEquals(f.length(), report.getFileLength());
+                assertThat(report.getWindow().length, lessThanOrEqualTo(CorruptionReport.WINDOW_SIZE));
+                assertThat(report.getWindowOffset(), lessThanOrEqualTo((long) offset));
+                assertNotNull(report.getDumpFile());
+                assertTrue(report.getDumpFile().isFile());
+                assertThat(report.getDumpFile().length(), lessThan(f.length()));
+            }
+        }
+    }
+
+    @Test public void buffersReused() throws Exception {
+        FlowExecutionOwner owner = FlowExecutionOwner.dummyOwner();
+        File outer = tmp.newFile();
+        File nested = tmp.newFile();
+        File later = tmp.newFile();
+        try (RiverWriter w = new RiverWriter(outer, owner, Collections.emptySet())) {
+            w.writeObject("outer");
+            try (RiverWriter w2 = new RiverWriter(nested, owner, Collections.emptySet())) {
+                w2.writeObject("nested");
+            }
+        }
+        try (RiverWriter w = new RiverWriter(later, owner, Collections.emptySet())) {
+            w.writeObject("later");
+        }
+        assertEquals("outer", readFirst(outer, owner));
+        assertEquals("nested", readFirst(nested, owner));
+        assertEquals("later", readFirst(later, owner));
+    }
+
+    private static Object readFirst(File f, FlowExecutionOwner owner) throws Exception {
+        try (RiverReader r = new RiverReader(f, RiverWriterTest.class.getClassLoader(), owner)) {
+            return r.restorePickles(new ArrayList<>()).get().readObject();
+        }
+    }
+
     @Issue("JENKINS-26137")
     @Test public void errors() throws Exception {
         File f = tmp.newFile();
@@ -5,6 +5,7 @@ import hudson.model.Action;
 import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
 import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
@@ -14,9 +15,22 @@ import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Base test for the storage implementations
@@ -49,6 +63,14 @@ public abstract class AbstractStorageTest {
     // Implement me for the implementation we're testing
     public abstract FlowNodeStorage instantiateStorage(MockFlowExecution exec, File storageDirectory);
 
+    /** Opens {@link #storageDir} afresh for a new execution, as when the build is loaded again. */
+    FlowNodeStorage reopen() {
+        MockFlowExecution exec = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(exec, storageDir);
+        exec.setStorage(storage);
+        return storage;
+    }
+
     /** Tests that basic nodes read and write correctly */
     @Test
     public void verifyBasicPersist() throws Exception {
@@ -84,8 +106,7 @@ public abstract class AbstractStorageTest {
         assert storage.isPersistedFully();
 
         // Now we try to read it back
-        MockFlowExecution mock2 = new MockFlowExecution();
-        FlowNodeStorage storageAfterRead = instantiateStorage(mock2, storageDir);
+        FlowNodeStorage storageAfterRead = reopen();
         assert storage.isPersistedFully();
 
         StorageTestUtils.assertNodesMatch(simple, storageAfterRead.getNode(simple.getId()));
@@ -97,5 +118,160 @@ public abstract class AbstractStorageTest {
         StorageTestUtils.assertNodesMatch(storage.getNode(deferredSave.getId()), storage.getNode(deferredSave.getId()));
     }
 
+    /** Tests that nodes written compressed are read back transparently, even by storage not set to compress. */
+    @Test
+    public void verifyCompressedPersist() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        storage.setCompressed(true);
+        mock.setStorage(storage);
+
+        AtomNode simple = new StorageTestUtils.SimpleAtomNode(mock, "simple");
+        storage.storeNode(simple);
+        AtomNode withAction = new StorageTestUtils.SimpleAtomNode(mock, "withAction", simple);
+        storage.storeNode(withAction, true);
+        withAction.addAction(new LabelAction("compressed"));
+        storage.flush();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(simple, storageAfterRead.getNode(simple.getId()));
+        StorageTestUtils.assertNodesMatch(withAction, storageAfterRead.getNode(withAction.getId()));
+    }
+
+    /** Tests that nodes stored as a batch are all written. */
+    @Test
+    public void verifyStoreNodes() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        AtomNode root = new StorageTestUtils.SimpleAtomNode(mock, "root");
+        storage.storeNode(root);
+        List<FlowNode> branches = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StorageTestUtils.SimpleAtomNode branch = new StorageTestUtils.SimpleAtomNode(mock, "branch" + i, root);
+            branch.setActions(new ArrayList<>(List.of(new LabelAction("branch " + i))));
+            branches.add(branch);
+        }
+        storage.storeNodes(branches, false);
+        assert storage.isPersistedFully();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, branches);
+    }
+
+    /** Tests that nodes can be read from other threads while they are being written. */
+    @Test
+    public void verifyConcurrentReads() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        int count = 100;
+        List<AtomNode> nodes;
+        AtomicInteger stored = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            Thread reader = new Thread(() -> {
+                int i = 0;
+                while (!done.get()) {
+                    int available = stored.get();
+                    if (available == 0) {
+                        continue;
+                    }
+                    String id = "n" + (i++ % available);
+                    try {
+                        FlowNode n = storage.getNode(id);
+                        if (n == null) {
+                            throw new AssertionError("missing " + id);
+                        }
+                        n.getActions();
+                    } catch (Throwable t) {
+                        failures.add(t);
+                        return;
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            nodes = StorageTestUtils.buildChain(mock, storage, count, i -> i % 2 == 0, n -> stored.incrementAndGet());
+            storage.flush();
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        for (Throwable t : failures) {
+            throw new AssertionError(t);
+        }
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+    }
+
+    /** Tests that I/O is counted per storage and controller-wide. */
+    @Test
+    public void verifyStatistics() throws Exception {
+        long globalBytesBefore = FlowNodeStorageStatistics.getGlobal().getBytesWritten();
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 10, true);
+        storage.flush();
+        FlowNodeStorageStatistics stats = storage.getStatistics();
+        assertNotNull(stats);
+        assertThat(stats.getWrites(), greaterThan(0L));
+        assertThat(stats.getBytesWritten(), greaterThan(0L));
+        assertThat(stats.getFlushes(), greaterThan(0L));
+        // A flush with nothing to write is not counted.
+        long flushes = stats.getFlushes();
+        storage.flush();
+        assertEquals(flushes, stats.getFlushes());
+        assertThat(FlowNodeStorageStatistics.getGlobal().getBytesWritten() - globalBytesBefore, greaterThanOrEqualTo(stats.getBytesWritten()));
+
+        FlowNodeStorage storageAfterRead = reopen();
+        for (AtomNode n : nodes) {
+            storageAfterRead.getNode(n.getId());
+            storageAfterRead.getNode(n.getId());
+        }
+        FlowNodeStorageStatistics readStats = storageAfterRead.getStatistics();
+        assertEquals(2L * nodes.size(), readStats.getReads());
+        assertThat(readStats.getMisses(), greaterThan(0L));
+        assertThat(readStats.getLoads() + readStats.getFullLoads(), greaterThan(0L));
+        assertThat(readStats.getHitRate(), greaterThanOrEqualTo(0.5));
+        assertEquals(0, readStats.getBytesWritten());
+
+        ObjectName on = new ObjectName(FlowNodeStorageStatistics.OBJECT_NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(on));
+        assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(on, "BusiestStorageStatistics"));
+    }
+
+    /** Verify that compaction drops nodes not reachable from the heads, keeping the others intact. */
+    @Test
+    public void verifyCompaction() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> kept = StorageTestUtils.buildChain(mock, storage, 5, false);
+        kept.get(2).addAction(new BodyInvocationAction()); // supersedes an earlier write of the node
+        AtomNode abandoned = new StorageTestUtils.SimpleAtomNode(mock, "abandoned", kept.get(1));
+        storage.storeNode(abandoned);
+        abandoned.addAction(new LabelAction("abandoned"));
+        storage.flush();
+
+        assertThrows(IllegalArgumentException.class, () -> storage.compact(Collections.emptyList()));
+        assertThrows(IllegalArgumentException.class, () -> storage.compact(List.of("missing")));
+        assertEquals(1, storage.compact(List.of("n4")));
+        assertNull(storage.getNode("abandoned"));
+        assertEquals(0, storage.compact(List.of("n4")));
 
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, kept);
+        assertNull(storageAfterRead.getNode("abandoned"));
+    }
 }
@@ -3,10 +3,13 @@ package org.jenkinsci.plugins.workflow.support.storage;
 import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
 import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
 
 /**
  * Actually attempts to test the storage engine
@@ -34,9 +37,7 @@ public class BulkStorageTest extends AbstractStorageTest {
         // If we added the action after, it wouldn't write out, because lump storage only writes on flush
 
         // Read and confirm the non-deferred one wrote
-        MockFlowExecution mock2 = new MockFlowExecution();
-        FlowNodeStorage storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        FlowNodeStorage storageAfterRead = reopen();
         StorageTestUtils.assertNodesMatch(directlyStored, storageAfterRead.getNode(directlyStored.getId()));
 
         // Node with actions added after storing, and deferred write
@@ -46,24 +47,249 @@ public class BulkStorageTest extends AbstractStorageTest {
         deferredWriteNode.addAction(new LabelAction("displayLabel"));
 
         // Read back and confirm the deferred write didn't flush to disk
-        storageAfterRead = instantiateStorage(mock2, storageDir);
+        storageAfterRead = reopen();
         assert storageAfterRead.isPersistedFully();
-        mock2.setStorage(storageAfterRead);
         Assert.assertNull(storageAfterRead.getNode(deferredWriteNode.getId()));
         StorageTestUtils.assertNodesMatch(directlyStored, storageAfterRead.getNode(directlyStored.getId())); // Make sure we didn't corrupt old node either
 
         // Flush the deferred one and confirm it's on disk now
         storage.flushNode(deferredWriteNode);
         assert storage.isPersistedFully();
-        storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        storageAfterRead = reopen();
         StorageTestUtils.assertNodesMatch(deferredWriteNode, storageAfterRead.getNode(deferredWriteNode.getId()));
 
         // Add an action and re-read to confirm that it doesn't autopersist still
         deferredWriteNode.addAction(new BodyInvocationAction());
         assert !storage.isPersistedFully();
-        storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        storageAfterRead = reopen();
         Assert.assertEquals(1, storageAfterRead.getNode(deferredWriteNode.getId()).getActions().size());
     }
+
+    /** Tests that flushing a few modified nodes only appends deltas, which are folded back in on consolidation. */
+    @Test
+    public void testDeltaFlushAndConsolidate() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 20, true);
+        storage.flush();
+        Assert.assertFalse(storage.getDeltaFile().exists());
+        long storeLength = storage.getStoreFile().length();
+
+        AtomNode changed = nodes.get(5);
+        changed.addAction(new BodyInvocationAction());
+        storage.flush();
+        assert storage.isPersistedFully();
+        Assert.assertTrue(storage.getDeltaFile().exists());
+        Assert.assertEquals(storeLength, storage.getStoreFile().length());
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+
+        storage.consolidate();
+        Assert.assertFalse(storage.getDeltaFile().exists());
+        storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+    }
+
+    /** Tests that binary delta records can follow XML ones in the same delta file, and are folded back in as XML. */
+    @Test
+    public void testBinaryDeltas() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 20, true);
+        storage.flush();
+        nodes.get(3).addAction(new BodyInvocationAction());
+        storage.flush();
+        boolean old = BulkFlowNodeStorage.BINARY_DELTAS;
+        BulkFlowNodeStorage.BINARY_DELTAS = true;
+        try {
+            nodes.get(5).addAction(new BodyInvocationAction());
+            nodes.get(3).addAction(new LabelAction(null));
+            storage.flush();
+        } finally {
+            BulkFlowNodeStorage.BINARY_DELTAS = old;
+        }
+        Assert.assertTrue(storage.getDeltaFile().exists());
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+
+        storage.consolidate();
+        Assert.assertFalse(storage.getDeltaFile().exists());
+        storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+    }
+
+    /** Tests that a crash at any point while the store is rewritten never replays deltas over a store which already includes newer versions. */
+    @Test
+    public void testCrashWhileRewritingStore() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        storage.setAvoidAtomicWrite(false);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 20, true);
+        storage.flush();
+        AtomNode changed = nodes.get(5);
+        changed.addAction(new BodyInvocationAction());
+        storage.flush();
+        Assert.assertTrue(storage.getDeltaFile().exists());
+        byte[] oldStore = Files.readAllBytes(storage.getStoreFile().toPath());
+        byte[] oldDelta = Files.readAllBytes(storage.getDeltaFile().toPath());
+        changed.addAction(new LabelAction("newest"));
+        storage.consolidate();
+        Assert.assertFalse(storage.getDeltaFile().exists());
+        Assert.assertFalse(storage.getFoldedDeltaFile().exists());
+        byte[] newStore = Files.readAllBytes(storage.getStoreFile().toPath());
+
+        // Crashed after the new store replaced the old one, before the folded deltas were deleted:
+        Files.write(storage.getFoldedDeltaFile().toPath(), oldDelta);
+        assertNewest(nodes, storage);
+
+        // Crashed after the deltas were folded, before the new store replaced the old one:
+        Files.write(storage.getTempStoreFile().toPath(), newStore);
+        Files.write(storage.getStoreFile().toPath(), oldStore);
+        Files.write(storage.getFoldedDeltaFile().toPath(), oldDelta);
+        assertNewest(nodes, storage);
+
+        // Crashed while writing the new store: the old store and deltas remain in effect.
+        Files.write(storage.getTempStoreFile().toPath(), new byte[] {'<'});
+        Files.write(storage.getStoreFile().toPath(), oldStore);
+        Files.write(storage.getDeltaFile().toPath(), oldDelta);
+        FlowNodeStorage storageAfterRead = reopen();
+        Assert.assertEquals(2, storageAfterRead.getNode(changed.getId()).getActions().size());
+        Assert.assertFalse(storage.getTempStoreFile().exists());
+    }
+
+    private void assertNewest(List<AtomNode> nodes, BulkFlowNodeStorage storage) throws Exception {
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+        Assert.assertFalse(storage.getFoldedDeltaFile().exists());
+        Assert.assertFalse(storage.getTempStoreFile().exists());
+    }
+
+    /** Tests that single nodes can be read through the index, and that the graph can still be modified afterwards. */
+    @Test
+    public void testIndexedLoad() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 10, true);
+        storage.flush();
+        Assert.assertTrue(storage.getIndexFile().exists());
+
+        MockFlowExecution mock2 = new MockFlowExecution();
+        FlowNodeStorage storageAfterRead = instantiateStorage(mock2, storageDir);
+        mock2.setStorage(storageAfterRead);
+        FlowNode lazilyLoaded = storageAfterRead.getNode("n7");
+        StorageTestUtils.assertNodesMatch(nodes.get(7), lazilyLoaded);
+        Assert.assertNull(storageAfterRead.getNode("missing"));
+
+        // Modifying the graph loads everything, keeping the node already handed out
+        AtomNode extra = new StorageTestUtils.SimpleAtomNode(mock2, "extra", lazilyLoaded);
+        storageAfterRead.storeNode(extra);
+        Assert.assertSame(lazilyLoaded, storageAfterRead.getNode("n7"));
+
+        FlowNodeStorage storageAfterWrite = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterWrite, nodes);
+        StorageTestUtils.assertNodesMatch(extra, storageAfterWrite.getNode(extra.getId()));
+    }
+
+    /** Tests that an index left over from another store of the same length is not used. */
+    @Test
+    public void testStaleIndexIgnored() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode first = new StorageTestUtils.SimpleAtomNode(mock, "n0");
+        first.addAction(new LabelAction("a"));
+        storage.storeNode(first, true);
+        AtomNode second = new StorageTestUtils.SimpleAtomNode(mock, "n1", first);
+        second.addAction(new LabelAction("bbb"));
+        storage.storeNode(second, true);
+        storage.flush();
+        long length = storage.getStoreFile().length();
+        byte[] oldIndex = Files.readAllBytes(storage.getIndexFile().toPath());
+        storage.deleteFiles();
+
+        // Same total length, but the second node now starts at a different offset:
+        MockFlowExecution mock2 = new MockFlowExecution();
+        BulkFlowNodeStorage storage2 = new BulkFlowNodeStorage(mock2, storageDir);
+        mock2.setStorage(storage2);
+        first = new StorageTestUtils.SimpleAtomNode(mock2, "n0");
+        first.addAction(new LabelAction("bbb"));
+        storage2.storeNode(first, true);
+        second = new StorageTestUtils.SimpleAtomNode(mock2, "n1", first);
+        second.addAction(new LabelAction("a"));
+        storage2.storeNode(second, true);
+        storage2.flush();
+        Assert.assertEquals(length, storage2.getStoreFile().length());
+        Files.write(storage2.getIndexFile().toPath(), oldIndex);
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(second, storageAfterRead.getNode("n1"));
+        StorageTestUtils.assertNodesMatch(first, storageAfterRead.getNode("n0"));
+    }
+
+    /** Tests that stores read the same through a memory mapping as through ordinary file I/O. */
+    @Test
+    public void testMappedRead() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 10, true);
+        storage.flush();
+
+        boolean old = BulkFlowNodeStorage.MMAP;
+        try {
+            for (boolean mmap : new boolean[] {true, false}) {
+                BulkFlowNodeStorage.MMAP = mmap;
+                // Through the index
+                MockFlowExecution indexedMock = new MockFlowExecution();
+                FlowNodeStorage indexed = instantiateStorage(indexedMock, storageDir);
+                indexedMock.setStorage(indexed);
+                StorageTestUtils.assertNodesMatch(nodes.get(3), indexed.getNode("n3"));
+                StorageTestUtils.assertNodesMatch(nodes.get(9), indexed.getNode("n9"));
+                // All at once
+                MockFlowExecution fullMock = new MockFlowExecution();
+                FlowNodeStorage full = instantiateStorage(fullMock, storageDir);
+                fullMock.setStorage(full);
+                full.preload(null);
+                StorageTestUtils.assertAllReadBack(full, nodes);
+            }
+        } finally {
+            BulkFlowNodeStorage.MMAP = old;
+        }
+    }
+
+    /** Tests that a reader holding a mapping of the store keeps reading it intact while the store is rewritten. */
+    @Test
+    public void testMappedStoreReplaced() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage storage = new BulkFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 10, true);
+        storage.flush();
+
+        boolean old = BulkFlowNodeStorage.MMAP;
+        BulkFlowNodeStorage.MMAP = true;
+        try {
+            MockFlowExecution indexedMock = new MockFlowExecution();
+            FlowNodeStorage indexed = instantiateStorage(indexedMock, storageDir);
+            indexedMock.setStorage(indexed);
+            StorageTestUtils.assertNodesMatch(nodes.get(3), indexed.getNode("n3"));
+            for (AtomNode n : nodes) {
+                n.addAction(new BodyInvocationAction()); // moves every node in the store
+            }
+            storage.consolidate();
+            FlowNode n9 = indexed.getNode("n9");
+            Assert.assertEquals(1, n9.getActions().size());
+            Assert.assertEquals(nodes.get(9).getParentIds(), n9.getParentIds());
+        } finally {
+            BulkFlowNodeStorage.MMAP = old;
+        }
+    }
 }
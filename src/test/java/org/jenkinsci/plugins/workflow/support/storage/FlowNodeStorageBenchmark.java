@@ -0,0 +1,222 @@
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.Util;
+import hudson.model.Action;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link FlowNodeStorage} implementations at storing, flushing and loading graphs of various sizes and action mixes.
+ * Each operation handles the whole graph, so scores are per graph rather than per node.
+ * Run with {@code mvn test -Dbenchmark}; see {@link BenchmarkRunner}.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FlowNodeStorageBenchmark {
+
+    /** The graph being benchmarked, and a directory holding it already stored, for the load benchmarks. */
+    public static class Graph extends JmhBenchmarkState {
+        @Param({"simple", "bulk", "log"})
+        public String storage;
+
+        @Param({"100", "1000", "10000", "100000"})
+        public int size;
+
+        /** {@code none}: no actions; {@code label}: one small action; {@code mixed}: several actions of different types. */
+        @Param({"none", "label", "mixed"})
+        public String actions;
+
+        final List<FlowNode> nodes = new ArrayList<>();
+        File stored;
+        /** Opened on {@link #stored} and loaded once, for {@link #warmLoad}. */
+        FlowNodeStorage warm;
+
+        @Override
+        public void setup() throws Exception {
+            MockFlowExecution exec = new MockFlowExecution();
+            FlowNode parent = null;
+            for (int i = 0; i < size; i++) {
+                StorageTestUtils.SimpleAtomNode n = parent == null ? new StorageTestUtils.SimpleAtomNode(exec, String.valueOf(i)) : new StorageTestUtils.SimpleAtomNode(exec, String.valueOf(i), parent);
+                n.setActions(actionsFor(actions, i));
+                nodes.add(n);
+                parent = n;
+            }
+            stored = Files.createTempDirectory("FlowNodeStorageBenchmark").toFile();
+            FlowNodeStorage s = open(new MockFlowExecution(), stored);
+            for (FlowNode n : nodes) {
+                s.storeNode(n, true);
+            }
+            s.flush();
+            warm = open(new MockFlowExecution(), stored);
+            for (FlowNode n : nodes) {
+                warm.getNode(n.getId());
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            try {
+                Util.deleteRecursive(stored);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+
+        static List<Action> actionsFor(String actions, int i) {
+            List<Action> result = new ArrayList<>();
+            switch (actions) {
+                case "none":
+                    break;
+                case "label":
+                    result.add(new LabelAction("node " + i));
+                    break;
+                case "mixed":
+                    result.add(new LabelAction("node " + i));
+                    result.add(new TimingAction());
+                    if (i % 2 == 0) {
+                        result.add(new BodyInvocationAction());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(actions);
+            }
+            return result;
+        }
+
+        FlowNodeStorage open(MockFlowExecution exec, File dir) {
+            FlowNodeStorage s;
+            switch (storage) {
+                case "simple":
+                    s = new SimpleXStreamFlowNodeStorage(exec, dir);
+                    break;
+                case "bulk":
+                    s = new BulkFlowNodeStorage(exec, dir);
+                    break;
+                case "log":
+                    s = new LogStructuredFlowNodeStorage(exec, dir);
+                    break;
+                default:
+                    throw new IllegalArgumentException(storage);
+            }
+            exec.setStorage(s);
+            return s;
+        }
+    }
+
+    /** Node files of a graph, as {@link SimpleXStreamFlowNodeStorage} writes them, for comparing ways of parsing them. */
+    public static class NodeFiles extends JmhBenchmarkState {
+        @Param({"1000", "10000"})
+        public int size;
+
+        @Param({"label", "mixed"})
+        public String actions;
+
+        final List<byte[]> files = new ArrayList<>();
+        final FlowNodeXmlReader reader = new FlowNodeXmlReader(SimpleXStreamFlowNodeStorage.XSTREAM);
+
+        @Override
+        public void setup() throws Exception {
+            MockFlowExecution exec = new MockFlowExecution();
+            FlowNode parent = null;
+            for (int i = 0; i < size; i++) {
+                StorageTestUtils.SimpleAtomNode n = parent == null ? new StorageTestUtils.SimpleAtomNode(exec, String.valueOf(i)) : new StorageTestUtils.SimpleAtomNode(exec, String.valueOf(i), parent);
+                List<Action> nodeActions = Graph.actionsFor(actions, i);
+                files.add(SimpleXStreamFlowNodeStorage.XSTREAM.toXML(new SimpleXStreamFlowNodeStorage.Tag(n, nodeActions)).getBytes(StandardCharsets.UTF_8));
+                parent = n;
+            }
+        }
+    }
+
+    /** A new, empty storage for each iteration of the write benchmarks. */
+    @State(Scope.Thread)
+    public static class Target {
+        File dir;
+        FlowNodeStorage storage;
+
+        @Setup(Level.Iteration)
+        public void setup(Graph graph) throws IOException {
+            dir = Files.createTempDirectory("FlowNodeStorageBenchmark").toFile();
+            storage = graph.open(new MockFlowExecution(), dir);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    /** Stores each node as it is created, as when every step is persisted. */
+    @Benchmark
+    public void store(Graph graph, Target target) throws IOException {
+        for (FlowNode n : graph.nodes) {
+            target.storage.storeNode(n);
+        }
+        target.storage.flush();
+    }
+
+    /** Stores all nodes with writing deferred, then flushes once, as with performance-optimized durability. */
+    @Benchmark
+    public void storeDeferredAndFlush(Graph graph, Target target) throws IOException {
+        for (FlowNode n : graph.nodes) {
+            target.storage.storeNode(n, true);
+        }
+        target.storage.flush();
+    }
+
+    /** Reads every node from a freshly opened storage, as when a build is resumed or its graph first viewed. */
+    @Benchmark
+    public void coldLoad(Graph graph, Blackhole bh) throws IOException {
+        FlowNodeStorage s = graph.open(new MockFlowExecution(), graph.stored);
+        for (FlowNode n : graph.nodes) {
+            bh.consume(s.getNode(n.getId()).getActions());
+        }
+    }
+
+    /** Reads every node from a storage which has already loaded them. */
+    @Benchmark
+    public void warmLoad(Graph graph, Blackhole bh) throws IOException {
+        for (FlowNode n : graph.nodes) {
+            bh.consume(graph.warm.getNode(n.getId()).getActions());
+        }
+    }
+
+    /** Parses node files with {@link FlowNodeXmlReader}, as {@link SimpleXStreamFlowNodeStorage} does. */
+    @Benchmark
+    public void parseStreaming(NodeFiles files, Blackhole bh) throws IOException {
+        for (byte[] xml : files.files) {
+            bh.consume(files.reader.read(xml, "benchmark"));
+        }
+    }
+
+    /** Parses the same files by unmarshalling each whole record with XStream, for comparison with {@link #parseStreaming}. */
+    @Benchmark
+    public void parseXStream(NodeFiles files, Blackhole bh) {
+        for (byte[] xml : files.files) {
+            bh.consume(SimpleXStreamFlowNodeStorage.XSTREAM.fromXML(new ByteArrayInputStream(xml)));
+        }
+    }
+}
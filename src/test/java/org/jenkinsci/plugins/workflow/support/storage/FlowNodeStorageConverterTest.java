@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests conversion between the node-per-file and bulk formats.
+ */
+public class FlowNodeStorageConverterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File dir = new File(j.jenkins.getRootDir(), "converterTest");
+        MockFlowExecution mock = new MockFlowExecution();
+        SimpleXStreamFlowNodeStorage simple = new SimpleXStreamFlowNodeStorage(mock, dir);
+        mock.setStorage(simple);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, simple, 20, false);
+        for (AtomNode n : nodes) {
+            n.addAction(new TimingAction());
+        }
+
+        MockFlowExecution bulkMock = new MockFlowExecution();
+        Assert.assertEquals(nodes.size(), FlowNodeStorageConverter.toBulk(bulkMock, dir));
+        Assert.assertTrue(SimpleXStreamFlowNodeStorage.listNodeFiles(dir).isEmpty());
+        BulkFlowNodeStorage bulk = new BulkFlowNodeStorage(bulkMock, dir);
+        bulkMock.setStorage(bulk);
+        Assert.assertTrue(bulk.getStoreFile().isFile());
+        StorageTestUtils.assertAllReadBack(bulk, nodes);
+        // Running again is harmless.
+        Assert.assertEquals(0, FlowNodeStorageConverter.toBulk(bulkMock, dir));
+        Assert.assertTrue(bulk.getStoreFile().isFile());
+
+        MockFlowExecution simpleMock = new MockFlowExecution();
+        Assert.assertEquals(nodes.size(), FlowNodeStorageConverter.toSimple(simpleMock, dir));
+        Assert.assertFalse(bulk.getStoreFile().exists());
+        Assert.assertEquals(nodes.size(), SimpleXStreamFlowNodeStorage.listNodeFiles(dir).size());
+        SimpleXStreamFlowNodeStorage simpleAfterRead = new SimpleXStreamFlowNodeStorage(simpleMock, dir);
+        simpleMock.setStorage(simpleAfterRead);
+        StorageTestUtils.assertAllReadBack(simpleAfterRead, nodes);
+    }
+
+    @Test
+    public void interruptedWhileDeletingBulkStore() throws Exception {
+        File dir = new File(j.jenkins.getRootDir(), "converterTest");
+        MockFlowExecution mock = new MockFlowExecution();
+        BulkFlowNodeStorage bulk = new BulkFlowNodeStorage(mock, dir);
+        mock.setStorage(bulk);
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, bulk, 20, true);
+        bulk.flush();
+        byte[] staleStore = Files.readAllBytes(bulk.getStoreFile().toPath());
+        nodes.get(3).addAction(new TimingAction());
+        bulk.flush();
+        Assert.assertTrue(bulk.getDeltaFile().exists());
+
+        MockFlowExecution simpleMock = new MockFlowExecution();
+        Assert.assertEquals(nodes.size(), FlowNodeStorageConverter.toSimple(simpleMock, dir));
+        // As if interrupted after deleting the deltas but before deleting the store:
+        Files.write(bulk.getStoreFile().toPath(), staleStore);
+        Files.createFile(new File(dir, FlowNodeStorageConverter.CONVERTED_MARKER).toPath());
+        Assert.assertEquals(0, FlowNodeStorageConverter.toSimple(simpleMock, dir));
+        Assert.assertFalse(bulk.getStoreFile().exists());
+        Assert.assertFalse(new File(dir, FlowNodeStorageConverter.CONVERTED_MARKER).exists());
+        SimpleXStreamFlowNodeStorage simpleAfterRead = new SimpleXStreamFlowNodeStorage(simpleMock, dir);
+        simpleMock.setStorage(simpleAfterRead);
+        StorageTestUtils.assertAllReadBack(simpleAfterRead, nodes);
+    }
+}
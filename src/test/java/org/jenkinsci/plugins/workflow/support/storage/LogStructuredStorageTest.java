@@ -0,0 +1,255 @@
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.InvisibleAction;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.actions.WorkspaceActionImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the append-only storage engine
+ */
+public class LogStructuredStorageTest extends AbstractStorageTest {
+
+    @Override
+    public FlowNodeStorage instantiateStorage(MockFlowExecution exec, File storageDirectory) {
+        return new LogStructuredFlowNodeStorage(exec, storageDirectory);
+    }
+
+    /** Verify that when nodes are explicitly flushed they do write to disk. */
+    @Test
+    public void testDeferWriteAndFlush() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        AtomNode directlyStored = new StorageTestUtils.SimpleAtomNode(mock, "directlyStored");
+        storage.storeNode(directlyStored, false);
+        directlyStored.addAction(new LabelAction("directStored"));
+
+        AtomNode deferredWriteNode = new StorageTestUtils.SimpleAtomNode(mock, "deferredWrite");
+        storage.storeNode(deferredWriteNode, true);
+        deferredWriteNode.addAction(new LabelAction("displayLabel"));
+        assert !storage.isPersistedFully();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(directlyStored, storageAfterRead.getNode(directlyStored.getId()));
+        Assert.assertNull(storageAfterRead.getNode(deferredWriteNode.getId()));
+
+        storage.flushNode(deferredWriteNode);
+        assert storage.isPersistedFully();
+        storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(deferredWriteNode, storageAfterRead.getNode(deferredWriteNode.getId()));
+
+        storage.autopersist(deferredWriteNode);
+        deferredWriteNode.addAction(new TimingAction());
+        storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(deferredWriteNode, storageAfterRead.getNode(deferredWriteNode.getId()));
+    }
+
+    /** Superseded records are dropped by compaction without losing the latest state of each node. */
+    @Test
+    public void compaction() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        storage.setAvoidAtomicWrite(true);
+        mock.setStorage(storage);
+
+        AtomNode first = new StorageTestUtils.SimpleAtomNode(mock, "first");
+        storage.storeNode(first);
+        AtomNode second = new StorageTestUtils.SimpleAtomNode(mock, "second", first);
+        storage.storeNode(second);
+        for (int i = 0; i < 20; i++) {
+            second.addAction(new LabelAction("label" + i));
+        }
+        first.addAction(new BodyInvocationAction());
+        storage.flush();
+
+        long before = storage.getSegmentFile().length();
+        storage.compact();
+        long after = storage.getSegmentFile().length();
+        Assert.assertTrue("segment shrank from " + before + " to " + after, after < before);
+
+        // Still usable after compaction
+        AtomNode third = new StorageTestUtils.SimpleAtomNode(mock, "third", second);
+        storage.storeNode(third);
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(first, storageAfterRead.getNode(first.getId()));
+        StorageTestUtils.assertNodesMatch(second, storageAfterRead.getNode(second.getId()));
+        StorageTestUtils.assertNodesMatch(third, storageAfterRead.getNode(third.getId()));
+    }
+
+    /** A torn record at the end of the segment is discarded, keeping earlier records readable. */
+    @Test
+    public void incompleteRecordIsTruncated() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        node.addAction(new LabelAction("label"));
+        storage.storeNode(node);
+        long length = storage.getSegmentFile().length();
+        try (FileOutputStream out = new FileOutputStream(storage.getSegmentFile(), true)) {
+            out.write(new byte[] {0, 0, 1, 0, 42, 42, 42});
+        }
+
+        MockFlowExecution mock2 = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storageAfterRead = new LogStructuredFlowNodeStorage(mock2, storageDir);
+        mock2.setStorage(storageAfterRead);
+        StorageTestUtils.assertNodesMatch(node, storageAfterRead.getNode(node.getId()));
+        Assert.assertEquals(length, storageAfterRead.getSegmentFile().length());
+    }
+
+    /** A segment whose header was torn while being created is treated as empty rather than preventing use of the storage. */
+    @Test
+    public void incompleteHeaderIsDiscarded() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        storageDir.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(storage.getSegmentFile())) {
+            out.write(new byte[] {0x57, 0x46, 0x4E});
+        }
+        Assert.assertNull(storage.getNode("missing"));
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        storage.storeNode(node);
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(node, storageAfterRead.getNode(node.getId()));
+    }
+
+    /** Closing writes pending nodes; the storage can still be used afterwards. */
+    @Test
+    public void close() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode first = new StorageTestUtils.SimpleAtomNode(mock, "first");
+        storage.storeNode(first, true);
+        first.addAction(new LabelAction("first"));
+        storage.close();
+        Assert.assertTrue(storage.isPersistedFully());
+
+        AtomNode second = new StorageTestUtils.SimpleAtomNode(mock, "second", first);
+        storage.storeNode(second);
+        StorageTestUtils.assertNodesMatch(first, storage.getNode(first.getId()));
+        storage.close();
+        storage.close();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(first, storageAfterRead.getNode(first.getId()));
+        StorageTestUtils.assertNodesMatch(second, storageAfterRead.getNode(second.getId()));
+        storageAfterRead.close();
+    }
+
+    /** The segment is closed once idle, and reopened without rescanning it when used again. */
+    @Test
+    public void idleSegmentClosed() throws Exception {
+        long old = LogStructuredFlowNodeStorage.IDLE_CLOSE_MILLIS;
+        LogStructuredFlowNodeStorage.IDLE_CLOSE_MILLIS = 100;
+        try {
+            MockFlowExecution mock = new MockFlowExecution();
+            LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+            mock.setStorage(storage);
+            AtomNode first = new StorageTestUtils.SimpleAtomNode(mock, "first");
+            storage.storeNode(first);
+            Assert.assertTrue(storage.isOpen());
+            awaitClosed(storage);
+
+            AtomNode second = new StorageTestUtils.SimpleAtomNode(mock, "second", first);
+            storage.storeNode(second);
+            Assert.assertTrue(storage.isOpen());
+
+            MockFlowExecution mock2 = new MockFlowExecution();
+            LogStructuredFlowNodeStorage storageAfterRead = new LogStructuredFlowNodeStorage(mock2, storageDir);
+            mock2.setStorage(storageAfterRead);
+            StorageTestUtils.assertNodesMatch(first, storageAfterRead.getNode(first.getId()));
+            awaitClosed(storageAfterRead);
+            StorageTestUtils.assertNodesMatch(second, storageAfterRead.getNode(second.getId()));
+        } finally {
+            LogStructuredFlowNodeStorage.IDLE_CLOSE_MILLIS = old;
+        }
+    }
+
+    private static void awaitClosed(LogStructuredFlowNodeStorage storage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (storage.isOpen()) {
+            Assert.assertTrue("segment still open", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /** Actions of a node already read are served from memory. */
+    @Test
+    public void actionsCached() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        storage.storeNode(node);
+        node.addAction(new LabelAction("label"));
+
+        MockFlowExecution mock2 = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storageAfterRead = new LogStructuredFlowNodeStorage(mock2, storageDir);
+        mock2.setStorage(storageAfterRead);
+        FlowNode read = storageAfterRead.getNode(node.getId());
+        long misses = storageAfterRead.getStatistics().getMisses();
+        Assert.assertEquals("label", storageAfterRead.loadActions(read).get(0).getDisplayName());
+        Assert.assertEquals(misses, storageAfterRead.getStatistics().getMisses());
+    }
+
+    /** Records written by either codec can be read back, including actions which the binary codec cannot encode itself. */
+    @Test
+    public void codecs() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        LogStructuredFlowNodeStorage storage = new LogStructuredFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+
+        storage.setCodec(XStreamFlowNodeCodec.INSTANCE);
+        AtomNode xml = new StorageTestUtils.SimpleAtomNode(mock, "xml");
+        storage.storeNode(xml);
+        xml.addAction(new LabelAction("xml"));
+
+        storage.setCodec(BinaryFlowNodeCodec.INSTANCE);
+        AtomNode binary = new StorageTestUtils.SimpleAtomNode(mock, "binary", xml);
+        storage.storeNode(binary, true);
+        binary.addAction(new TimingAction());
+        binary.addAction(new LabelAction(null));
+        PauseAction pause = new PauseAction("waiting");
+        pause.setEndTime(pause.getStartTime() + 1000);
+        binary.addAction(pause);
+        binary.addAction(new WorkspaceActionImpl(j.jenkins.getRootPath(), binary));
+        binary.addAction(new MapAction());
+        storage.flush();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(xml, storageAfterRead.getNode(xml.getId()));
+        AtomNode read = (AtomNode) storageAfterRead.getNode(binary.getId());
+        StorageTestUtils.assertNodesMatch(binary, read);
+        Assert.assertEquals(binary.getAction(TimingAction.class).getStartTime(), read.getAction(TimingAction.class).getStartTime());
+        PauseAction pauseRead = read.getAction(PauseAction.class);
+        Assert.assertEquals("waiting", pauseRead.getCause());
+        Assert.assertEquals(1000, pauseRead.getPauseDuration());
+        WorkspaceActionImpl ws = read.getAction(WorkspaceActionImpl.class);
+        Assert.assertEquals(j.jenkins.getRootPath().getRemote(), ws.getPath());
+        Assert.assertEquals("", ws.getNode());
+        Assert.assertEquals(binary.getAction(WorkspaceActionImpl.class).getLabels(), ws.getLabels());
+        Assert.assertSame(read, ws.getParent());
+        Assert.assertEquals(new MapAction().values, read.getAction(MapAction.class).values);
+    }
+
+    /** Has state which the binary codec leaves to XStream. */
+    public static final class MapAction extends InvisibleAction {
+        final Map<String, Integer> values = new TreeMap<>(Map.of("one", 1, "two", 2));
+    }
+}
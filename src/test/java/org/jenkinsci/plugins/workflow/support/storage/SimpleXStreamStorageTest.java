@@ -1,15 +1,26 @@
 package org.jenkinsci.plugins.workflow.support.storage;
 
 
+import hudson.ExtensionList;
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
 import hudson.model.Result;
 import hudson.util.RobustReflectionConverter;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
 import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.actions.TimingAction;
 import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
 import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.junit.Assert;
 import org.junit.Rule;
@@ -54,11 +65,8 @@ public class SimpleXStreamStorageTest extends AbstractStorageTest {
         assert !storage.isPersistedFully();
 
         // Read and confirm the non-deferred one wrote, and the deferred one didn't
-        MockFlowExecution mock2 = new MockFlowExecution();
-        FlowNodeStorage storageAfterRead = instantiateStorage(mock2, storageDir);
+        FlowNodeStorage storageAfterRead = reopen();
         assert storageAfterRead.isPersistedFully();
-
-        mock2.setStorage(storageAfterRead);
         StorageTestUtils.assertNodesMatch(directlyStored, storageAfterRead.getNode(directlyStored.getId()));
         Assert.assertNull(storageAfterRead.getNode(deferredWriteNode.getId()));
 
@@ -66,26 +74,339 @@ public class SimpleXStreamStorageTest extends AbstractStorageTest {
         // Flush the deferred one and confirm it's on disk now
         storage.flushNode(deferredWriteNode);
         assert storage.isPersistedFully();
-        storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        storageAfterRead = reopen();
         StorageTestUtils.assertNodesMatch(deferredWriteNode, storageAfterRead.getNode(deferredWriteNode.getId()));
 
         // Add an action and re-read to confirm that it doesn't autopersist still
         deferredWriteNode.addAction(new BodyInvocationAction());
         assert !storage.isPersistedFully();
-        storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        storageAfterRead = reopen();
         Assert.assertEquals(1, storageAfterRead.getNode(deferredWriteNode.getId()).getActions().size());
 
         // Mark node for autopersist and confirm it actually does now by adding a new action
         storage.autopersist(deferredWriteNode);
         assert storage.isPersistedFully();
         deferredWriteNode.addAction(new TimingAction());
-        storageAfterRead = instantiateStorage(mock2, storageDir);
-        mock2.setStorage(storageAfterRead);
+        storageAfterRead = reopen();
         StorageTestUtils.assertNodesMatch(deferredWriteNode, storageAfterRead.getNode(deferredWriteNode.getId()));
     }
 
+    /** Verify that queued writes are visible before they hit the disk, and are all on disk after a flush. */
+    @Test
+    public void testWriteBehind() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(mock, storageDir);
+        storage.setWriteBehind(true);
+        mock.setStorage(storage);
+
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 50, false);
+        for (AtomNode n : nodes) {
+            n.addAction(new TimingAction());
+        }
+        StorageTestUtils.assertAllReadBack(storage, nodes);
+        storage.flush();
+        assert storage.isPersistedFully();
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(mock, storageDir);
+        storage.setGroupCommitMillis(TimeUnit.HOURS.toMillis(1));
+        mock.setStorage(storage);
+
+        List<AtomNode> nodes = StorageTestUtils.buildChain(mock, storage, 20, false);
+        StorageTestUtils.assertAllReadBack(storage, nodes);
+        Assert.assertFalse("held for the commit window", storage.isPersistedFully());
+        Assert.assertFalse(new File(storageDir, "n0.xml").exists());
+        storage.flush();
+        Assert.assertTrue(storage.isPersistedFully());
+        File journal = new File(storageDir, NodeJournal.FILE_NAME);
+        Assert.assertTrue("one batch was journaled", journal.length() > 0);
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+    }
+
+    /** Simulates a crash after a batch was journaled but before its node files were written. */
+    @Test
+    public void testGroupCommitRecovery() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode n = new StorageTestUtils.SimpleAtomNode(mock, "n");
+        storage.storeNode(n);
+        n.addAction(new LabelAction("label"));
+        File nodeFile = new File(storageDir, "n.xml");
+        byte[] contents = Files.readAllBytes(nodeFile.toPath());
+        Files.delete(nodeFile.toPath());
+
+        NodeJournal journal = new NodeJournal(storageDir);
+        journal.append(Map.of(nodeFile, contents));
+        // Torn tail of a second append.
+        Files.write(new File(storageDir, NodeJournal.FILE_NAME).toPath(), new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(n, storageAfterRead.getNode(n.getId()));
+        Assert.assertTrue(nodeFile.isFile());
+        Assert.assertFalse(new File(storageDir, NodeJournal.FILE_NAME).exists());
+    }
+
+    /** Verify that actions saved in quick succession are held back until flushed. */
+    @Test
+    public void testSaveActionsDebounce() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        storage.setSaveActionsDebounceMillis(TimeUnit.MINUTES.toMillis(1));
+        mock.setStorage(storage);
+
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        storage.storeNode(node, false);
+        assert storage.isPersistedFully();
+        node.addAction(new LabelAction("label"));
+        node.addAction(new TimingAction());
+        node.addAction(new BodyInvocationAction());
+        assert !storage.isPersistedFully();
+        StorageTestUtils.assertNodesMatch(node, storage.getNode(node.getId()));
+
+        FlowNodeStorage storageAfterRead = reopen();
+        Assert.assertEquals(0, storageAfterRead.getNode(node.getId()).getActions().size());
+
+        storage.flush();
+        assert storage.isPersistedFully();
+        storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(node, storageAfterRead.getNode(node.getId()));
+
+        // Flushing just the node writes it out without waiting for the debounce.
+        node.addAction(new LabelAction("another"));
+        assert !storage.isPersistedFully();
+        storage.flushNode(node);
+        assert storage.isPersistedFully();
+        storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(node, storageAfterRead.getNode(node.getId()));
+    }
+
+    /** Verify that existing node files can be migrated to and from compressed form. */
+    @Test
+    public void testRecompress() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        storage.storeNode(node);
+        node.addAction(new LabelAction("label"));
+        File nodeFile = new File(storageDir, "node.xml");
+        long uncompressedLength = nodeFile.length();
+
+        Assert.assertEquals(1, SimpleXStreamFlowNodeStorage.recompress(storageDir, true));
+        Assert.assertEquals(0, SimpleXStreamFlowNodeStorage.recompress(storageDir, true));
+        Assert.assertNotEquals(uncompressedLength, nodeFile.length());
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(node, storageAfterRead.getNode(node.getId()));
+
+        Assert.assertEquals(1, SimpleXStreamFlowNodeStorage.recompress(storageDir, false));
+        Assert.assertEquals(uncompressedLength, nodeFile.length());
+    }
+
+    /** Verify that nodes and actions seen before are served from memory, and that absent nodes can later be written. */
+    @Test
+    public void testTagCache() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        Assert.assertNull(storage.getNode("later"));
+
+        AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+        storage.storeNode(node);
+        node.addAction(new LabelAction("label"));
+        Assert.assertTrue(new File(storageDir, "node.xml").delete());
+        Assert.assertSame(node, storage.getNode(node.getId()));
+        List<Action> actions = storage.loadActions(node);
+        Assert.assertEquals(1, actions.size());
+        Assert.assertEquals("label", actions.get(0).getDisplayName());
+
+        AtomNode later = new StorageTestUtils.SimpleAtomNode(mock, "later", node);
+        Assert.assertEquals(0, storage.loadActions(later).size());
+        storage.storeNode(later);
+        Assert.assertSame(later, storage.getNode("later"));
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(later, storageAfterRead.getNode(later.getId()));
+    }
+
+    /** Verify that node files are read by the streaming reader, including references between the node and its actions, and legacy parents. */
+    @Test
+    public void testStreamingRead() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        AtomNode plain = new StorageTestUtils.SimpleAtomNode(mock, "plain");
+        storage.storeNode(plain);
+        plain.addAction(new LabelAction("label"));
+        plain.addAction(new TimingAction());
+        AtomNode referring = new StorageTestUtils.SimpleAtomNode(mock, "referring", plain);
+        storage.storeNode(referring);
+        referring.addAction(new NodeReferenceAction(referring));
+        storage.flush();
+
+        FlowNodeXmlReader reader = new FlowNodeXmlReader(SimpleXStreamFlowNodeStorage.XSTREAM);
+        File plainFile = new File(storageDir, "plain.xml");
+        FlowNodeCodec.Decoded streamed = reader.read(Files.readAllBytes(plainFile.toPath()), plainFile);
+        Assert.assertEquals("plain", streamed.node.getId());
+        Assert.assertEquals(2, streamed.actions.size());
+        Assert.assertEquals("label", streamed.actions.get(0).getDisplayName());
+        File referringFile = new File(storageDir, "referring.xml");
+        FlowNodeCodec.Decoded withReference = reader.read(Files.readAllBytes(referringFile.toPath()), referringFile);
+        Assert.assertSame(withReference.node, ((NodeReferenceAction) withReference.actions.get(0)).node);
+        String nodeClass = "org.jenkinsci.plugins.workflow.support.storage.StorageTestUtils_-SimpleAtomNode";
+        String legacy = "<Tag><node class='" + StorageTestUtils.SimpleAtomNode.class.getName() + "'><parents><" + nodeClass + ">plain</" + nodeClass + "></parents><id>legacy</id></node>"
+                + "<actions><wf.a.LabelAction><displayName>old</displayName></wf.a.LabelAction><no.such.Action/></actions></Tag>";
+        FlowNodeCodec.Decoded legacyRead = reader.read(legacy.getBytes(StandardCharsets.UTF_8), "legacy");
+        Assert.assertEquals("legacy", legacyRead.node.getId());
+        Assert.assertEquals(List.of("plain"), legacyRead.node.getParentIds());
+        Assert.assertEquals(1, legacyRead.actions.size());
+        Assert.assertEquals("old", legacyRead.actions.get(0).getDisplayName());
+
+        FlowNodeStorage storageAfterRead = reopen();
+        StorageTestUtils.assertNodesMatch(plain, storageAfterRead.getNode("plain"));
+        FlowNode loaded = storageAfterRead.getNode("referring");
+        StorageTestUtils.assertNodesMatch(referring, loaded);
+        Assert.assertSame(loaded, loaded.getAction(NodeReferenceAction.class).node);
+    }
+
+    public static class NodeReferenceAction extends InvisibleAction {
+        final FlowNode node;
+
+        NodeReferenceAction(FlowNode node) {
+            this.node = node;
+        }
+    }
+
+    /** Verify that preloaded nodes are then served without reading their files. */
+    @Test
+    public void testPreload() throws Exception {
+        MockFlowExecution mock = new MockFlowExecution();
+        FlowNodeStorage storage = instantiateStorage(mock, storageDir);
+        mock.setStorage(storage);
+        List<AtomNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            AtomNode n = new StorageTestUtils.SimpleAtomNode(mock, "n" + i);
+            storage.storeNode(n);
+            n.addAction(new LabelAction("label" + i));
+            nodes.add(n);
+        }
+
+        FlowNodeStorage storageAfterRead = reopen();
+        storageAfterRead.preload(null);
+        FlowNodeStorage partial = reopen();
+        partial.preload(List.of("n0", "missing"));
+        for (File f : SimpleXStreamFlowNodeStorage.listNodeFiles(storageDir)) {
+            Assert.assertTrue(f.delete());
+        }
+        StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+        StorageTestUtils.assertNodesMatch(nodes.get(0), partial.getNode("n0"));
+        Assert.assertNull(partial.getNode("n1"));
+        Assert.assertNull(partial.getNode("missing"));
+    }
+
+    /** Verify that storages can share one bounded cache, and report its statistics. */
+    @Test
+    public void testSharedCache() throws Exception {
+        long old = SimpleXStreamFlowNodeStorage.CACHE_MAX_BYTES;
+        SimpleXStreamFlowNodeStorage.CACHE_MAX_BYTES = 1 << 20;
+        try {
+            MockFlowExecution mock = new MockFlowExecution();
+            SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(mock, storageDir);
+            mock.setStorage(storage);
+            AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, "node");
+            storage.storeNode(node);
+            node.addAction(new LabelAction("label"));
+
+            MockFlowExecution mock2 = new MockFlowExecution();
+            SimpleXStreamFlowNodeStorage storageAfterRead = new SimpleXStreamFlowNodeStorage(mock2, storageDir);
+            mock2.setStorage(storageAfterRead);
+            long hits = storageAfterRead.getCacheStats().hitCount();
+            long misses = storageAfterRead.getCacheStats().missCount();
+            // Same node ID, but a different storage, so must not be served the other storage's node.
+            FlowNode read = storageAfterRead.getNode(node.getId());
+            Assert.assertNotSame(node, read);
+            StorageTestUtils.assertNodesMatch(node, read);
+            Assert.assertSame(read, storageAfterRead.getNode(node.getId()));
+            Assert.assertEquals(misses + 1, storageAfterRead.getCacheStats().missCount());
+            Assert.assertEquals(hits + 1, storageAfterRead.getCacheStats().hitCount());
+            Assert.assertEquals(storage.getCacheStats(), SimpleXStreamFlowNodeStorage.getSharedCacheStats());
+
+            // Closing a storage drops its own entries only.
+            storageAfterRead.close();
+            FlowNode reread = storageAfterRead.getNode(node.getId());
+            Assert.assertNotSame(read, reread);
+            StorageTestUtils.assertNodesMatch(node, reread);
+            Assert.assertEquals(misses + 2, storageAfterRead.getCacheStats().missCount());
+            Assert.assertSame(node, storage.getNode(node.getId()));
+
+            // So does completing an execution.
+            ExtensionList.lookupSingleton(SimpleXStreamFlowNodeStorage.SharedCacheCleaner.class).onCompleted(mock);
+            FlowNode afterCompletion = storage.getNode(node.getId());
+            Assert.assertNotSame(node, afterCompletion);
+            StorageTestUtils.assertNodesMatch(node, afterCompletion);
+            Assert.assertSame(reread, storageAfterRead.getNode(node.getId()));
+        } finally {
+            SimpleXStreamFlowNodeStorage.CACHE_MAX_BYTES = old;
+        }
+    }
+
+    /** Verify that new directories use the sharded layout when requested, while existing flat directories stay readable. */
+    @Test
+    public void testShardedLayout() throws Exception {
+        File flatDir = new File(storageDir.getParentFile(), "flat");
+        MockFlowExecution flatMock = new MockFlowExecution();
+        SimpleXStreamFlowNodeStorage flat = new SimpleXStreamFlowNodeStorage(flatMock, flatDir);
+        flatMock.setStorage(flat);
+        AtomNode legacy = new StorageTestUtils.SimpleAtomNode(flatMock, "legacy");
+        flat.storeNode(legacy);
+        Assert.assertFalse(flat.isSharded());
+
+        boolean old = SimpleXStreamFlowNodeStorage.SHARDED;
+        SimpleXStreamFlowNodeStorage.SHARDED = true;
+        try {
+            MockFlowExecution mock = new MockFlowExecution();
+            SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(mock, storageDir);
+            mock.setStorage(storage);
+            // Reading does not settle the layout, nor create anything.
+            Assert.assertNull(storage.getNode("0"));
+            Assert.assertTrue(storage.isSharded());
+            Assert.assertFalse(new File(storageDir, "sharded").exists());
+            List<AtomNode> nodes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                AtomNode node = new StorageTestUtils.SimpleAtomNode(mock, String.valueOf(i));
+                storage.storeNode(node);
+                node.addAction(new LabelAction("label" + i));
+                nodes.add(node);
+            }
+            Assert.assertTrue(storage.isSharded());
+            Assert.assertFalse(new File(storageDir, "0.xml").exists());
+            Assert.assertEquals(nodes.size(), SimpleXStreamFlowNodeStorage.listNodeFiles(storageDir).size());
+
+            MockFlowExecution mock2 = new MockFlowExecution();
+            SimpleXStreamFlowNodeStorage storageAfterRead = new SimpleXStreamFlowNodeStorage(mock2, storageDir);
+            mock2.setStorage(storageAfterRead);
+            StorageTestUtils.assertAllReadBack(storageAfterRead, nodes);
+
+            // An existing flat directory keeps its layout.
+            MockFlowExecution flatMock2 = new MockFlowExecution();
+            SimpleXStreamFlowNodeStorage flatAfterRead = new SimpleXStreamFlowNodeStorage(flatMock2, flatDir);
+            flatMock2.setStorage(flatAfterRead);
+            StorageTestUtils.assertNodesMatch(legacy, flatAfterRead.getNode(legacy.getId()));
+            Assert.assertFalse(flatAfterRead.isSharded());
+            flatAfterRead.storeNode(new StorageTestUtils.SimpleAtomNode(flatMock2, "added", legacy));
+            Assert.assertTrue(new File(flatDir, "added.xml").isFile());
+        } finally {
+            SimpleXStreamFlowNodeStorage.SHARDED = old;
+        }
+    }
+
     @LocalData
     @Test public void actionDeserializationShouldBeRobust() throws Exception {
         /*
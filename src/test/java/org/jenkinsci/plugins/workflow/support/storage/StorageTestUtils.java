@@ -1,12 +1,18 @@
 package org.jenkinsci.plugins.workflow.support.storage;
 
 import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.AtomNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.junit.Assert;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 /**
  * Utilities for verifying storage
@@ -39,6 +45,39 @@ class StorageTestUtils {
         }
     }
 
+    /** Test that every node reads back from the storage as expected */
+    public static void assertAllReadBack(FlowNodeStorage storage, Collection<? extends FlowNode> expected) throws Exception {
+        for (FlowNode n : expected) {
+            assertNodesMatch(n, storage.getNode(n.getId()));
+        }
+    }
+
+    /**
+     * Stores a chain of nodes {@code n0}, {@code n1} and so on, each the parent of the next, adding a {@link LabelAction} to each once stored.
+     * @return the nodes, in order
+     */
+    static List<AtomNode> buildChain(FlowExecution exec, FlowNodeStorage storage, int count, boolean delayWritingActions) throws IOException {
+        return buildChain(exec, storage, count, i -> delayWritingActions, n -> {});
+    }
+
+    /**
+     * Like {@link #buildChain(FlowExecution, FlowNodeStorage, int, boolean)}, choosing for each index whether to defer writes.
+     * @param onStored called with each node once stored and labeled
+     */
+    static List<AtomNode> buildChain(FlowExecution exec, FlowNodeStorage storage, int count, IntPredicate delayWritingActions, Consumer<AtomNode> onStored) throws IOException {
+        List<AtomNode> nodes = new ArrayList<>();
+        AtomNode parent = null;
+        for (int i = 0; i < count; i++) {
+            AtomNode n = parent == null ? new SimpleAtomNode(exec, "n" + i) : new SimpleAtomNode(exec, "n" + i, parent);
+            storage.storeNode(n, delayWritingActions.test(i));
+            n.addAction(new LabelAction("label" + i));
+            nodes.add(n);
+            onStored.accept(n);
+            parent = n;
+        }
+        return nodes;
+    }
+
     /** Trivial impl for testing */
     static class SimpleAtomNode extends AtomNode {
 